@@ -0,0 +1,221 @@
+package ru.ifmo.rain.maslov.walk;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.*;
+
+/**
+ * Writes records of entries inside zip and jar archives after the records of the archives themselves.
+ * <p>
+ * Archives are opened through the zip file system and walked by {@link RecursiveWalk.MyVisitor} on a pool,
+ * owned by the expander or shared with other walks, streaming decompressed entries into the hasher, while
+ * the walk goes on with other files. Records are written in the order the walk visits them; entries are
+ * named {@code <archive>!<entry>}, so archives nested in archives are expanded as well, from a temporary
+ * copy, since the zip file system reads a nested archive into memory. At most {@link #CAPACITY} records
+ * wait for archives in flight.
+ * An archive that cannot be expanded gets a zero record named {@code <archive>!/}.
+ */
+class ArchiveExpander implements ManifestWriter {
+    static final int CAPACITY = 1 << 16;
+    private static final String SEPARATOR = "!";
+
+    private final ManifestWriter writer;
+    private final Digester digester;
+    private final ExecutorService pool;
+    private final boolean shared;
+    private final Deque<Pending> pending = new ArrayDeque<>();
+
+    /**
+     * @param pool shared pool, or {@code null} to expand archives on a new pool of {@code threads} threads
+     */
+    ArchiveExpander(ManifestWriter writer, Digester digester, ExecutorService pool, int threads) {
+        this.writer = writer;
+        this.digester = digester;
+        this.shared = pool != null;
+        this.pool = shared ? pool : Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "archive-expander");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static class Record {
+        private final byte[] hash;
+        private final String path;
+
+        Record(byte[] hash, String path) {
+            this.hash = hash;
+            this.path = path;
+        }
+    }
+
+    /**
+     * Single record or records of an archive.
+     */
+    private static class Pending {
+        private final Record record;
+        private final Path archive;
+        private final Future<List<Record>> records;
+
+        Pending(Record record, Path archive, Future<List<Record>> records) {
+            this.record = record;
+            this.archive = archive;
+            this.records = records;
+        }
+
+        boolean isDone() {
+            return records == null || records.isDone();
+        }
+    }
+
+    static boolean isArchive(Path path, BasicFileAttributes attrs) {
+        Path name = path.getFileName();
+        if (!attrs.isRegularFile() || name == null) {
+            return false;
+        }
+        String lower = name.toString().toLowerCase(Locale.ROOT);
+        return lower.endsWith(".zip") || lower.endsWith(".jar");
+    }
+
+    @Override
+    public void write(byte[] hash, String path) throws IOException {
+        if (pending.isEmpty()) {
+            writer.write(hash, path);
+        } else {
+            add(new Pending(new Record(hash.clone(), path), null, null));
+        }
+    }
+
+    /**
+     * Writes records of the archive entries after all previously written records.
+     */
+    void expand(Path archive) throws IOException {
+        String name = archive.toString();
+        add(new Pending(null, archive, pool.submit(() -> contents(archive, name))));
+    }
+
+    private void add(Pending record) throws IOException {
+        while (pending.size() >= CAPACITY) {
+            writeFirst();
+        }
+        pending.add(record);
+        while (!pending.isEmpty() && pending.peekFirst().isDone()) {
+            writeFirst();
+        }
+    }
+
+    private void writeFirst() throws IOException {
+        Pending first = pending.removeFirst();
+        if (first.records == null) {
+            writer.write(first.record.hash, first.record.path);
+            return;
+        }
+        List<Record> records;
+        try {
+            records = first.records.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while expanding archive");
+        } catch (ExecutionException e) {
+            records = List.of(failed(first.archive, first.archive.toString(), e.getCause()));
+        }
+        for (Record record : records) {
+            writer.write(record.hash, record.path);
+        }
+    }
+
+    /**
+     * Writes all pending records.
+     */
+    void flush() throws IOException {
+        while (!pending.isEmpty()) {
+            writeFirst();
+        }
+    }
+
+    /**
+     * Returns records of entries of the archive, expanding nested archives in place.
+     *
+     * @param name path of the archive in records
+     */
+    private List<Record> contents(Path archive, String name) {
+        List<Record> records = new ArrayList<>();
+        ManifestWriter collector = new ManifestWriter() {
+            @Override
+            public void write(byte[] hash, String path) {
+                records.add(new Record(hash.clone(), name + SEPARATOR + path));
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Path copy = null;
+        try {
+            if (archive.getFileSystem() != FileSystems.getDefault()) {
+                copy = Files.createTempFile("archive", ".zip");
+                Files.copy(archive, copy, StandardCopyOption.REPLACE_EXISTING);
+            }
+            walk(copy != null ? copy : archive, collector, records, name);
+        } catch (IOException | ProviderNotFoundException | UnsupportedOperationException e) {
+            records.add(failed(archive, name, e));
+        } finally {
+            if (copy != null) {
+                try {
+                    Files.deleteIfExists(copy);
+                } catch (IOException e) {
+                    System.err.println("Cannot delete temporary file " + copy + ": " + e.getMessage());
+                }
+            }
+        }
+        return records;
+    }
+
+    private Record failed(Path archive, String name, Throwable e) {
+        return new Record(digester.failed(archive, e instanceof IOException ? (IOException) e : new IOException(e)),
+                name + SEPARATOR + "/");
+    }
+
+    private void walk(Path archive, ManifestWriter collector, List<Record> records, String name)
+            throws IOException {
+        try (FileSystem fs = FileSystems.newFileSystem(archive)) {
+            for (Path root : fs.getRootDirectories()) {
+                Files.walkFileTree(root, new RecursiveWalk.MyVisitor(collector, digester) {
+                    @Override
+                    public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+                        super.visitFile(path, attrs);
+                        if (digester.getFilter().accept(path, attrs) && isArchive(path, attrs)) {
+                            records.addAll(contents(path, name + SEPARATOR + path));
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            if (shared) {
+                for (Pending record : pending) {
+                    if (record.records != null) {
+                        record.records.cancel(true);
+                    }
+                }
+            } else {
+                pool.shutdownNow();
+            }
+            writer.close();
+        }
+    }
+}
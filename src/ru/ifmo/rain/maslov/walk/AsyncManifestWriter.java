@@ -0,0 +1,207 @@
+package ru.ifmo.rain.maslov.walk;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Writes text manifest lines {@code <hex hash> <path>\n} in UTF-8.
+ * <p>
+ * Lines are formatted directly into reusable batch buffers that are handed over to a
+ * writer thread through a bounded queue and written to the channel with gathering writes.
+ * When all batches are in flight, {@link #write} blocks until the writer thread returns one.
+ */
+class AsyncManifestWriter implements ManifestWriter {
+    static final int DEFAULT_BATCH_SIZE = 256 * 1024;
+    static final int DEFAULT_BATCHES = 8;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final FileChannel channel;
+    private final byte[] tag;
+    private final BlockingQueue<ByteBuffer> full;
+    private final BlockingQueue<ByteBuffer> free;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final Future<?> thread;
+    private ByteBuffer batch;
+    private volatile IOException failure;
+    private long submitted;
+    private long drained;
+
+    AsyncManifestWriter(FileChannel channel) {
+        this(channel, "");
+    }
+
+    /**
+     * @param tag ASCII prefix of every hash
+     */
+    AsyncManifestWriter(FileChannel channel, String tag) {
+        this(channel, tag, WalkThreads.DEDICATED);
+    }
+
+    /**
+     * @param tag     ASCII prefix of every hash
+     * @param threads threads to run the writer thread on
+     */
+    AsyncManifestWriter(FileChannel channel, String tag, WalkThreads threads) {
+        this(channel, tag, DEFAULT_BATCH_SIZE, DEFAULT_BATCHES, threads);
+    }
+
+    AsyncManifestWriter(FileChannel channel, String tag, int batchSize, int batches, WalkThreads threads) {
+        this.channel = channel;
+        this.tag = tag.getBytes(StandardCharsets.US_ASCII);
+        this.full = new ArrayBlockingQueue<>(batches + 1);
+        this.free = new ArrayBlockingQueue<>(batches);
+        for (int i = 1; i < batches; i++) {
+            free.add(ByteBuffer.allocateDirect(batchSize));
+        }
+        this.batch = ByteBuffer.allocateDirect(batchSize);
+        this.thread = threads.start(this::drain, "walk-output");
+    }
+
+    @Override
+    public void write(byte[] hash, String path) throws IOException {
+        int required = tag.length + hash.length * 2 + 2 + path.length() * (int) encoder.maxBytesPerChar();
+        if (batch.remaining() < required) {
+            checkFailure();
+            submit();
+            if (batch.capacity() < required) {
+                batch = ByteBuffer.allocate(required);
+            }
+        }
+        batch.put(tag);
+        ManifestConverter.putHex(batch, hash);
+        batch.put((byte) ' ');
+        int i = 0;
+        for (; i < path.length() && path.charAt(i) < 0x80; i++) {
+            batch.put((byte) path.charAt(i));
+        }
+        if (i < path.length()) {
+            encoder.reset();
+            CoderResult result = encoder.encode(CharBuffer.wrap(path, i, path.length()), batch, true);
+            if (result.isError()) {
+                result.throwException();
+            }
+            encoder.flush(batch);
+        }
+        batch.put((byte) '\n');
+    }
+
+    private void submit() throws IOException {
+        batch.flip();
+        try {
+            synchronized (this) {
+                submitted++;
+            }
+            full.put(batch);
+            batch = free.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for output");
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Output write failed", failure);
+        }
+    }
+
+    private void drain() {
+        List<ByteBuffer> batches = new ArrayList<>();
+        while (true) {
+            try {
+                batches.add(full.take());
+            } catch (InterruptedException e) {
+                failure = new InterruptedIOException("Output thread interrupted");
+                synchronized (this) {
+                    notifyAll();
+                }
+                return;
+            }
+            full.drainTo(batches);
+            boolean end = batches.get(batches.size() - 1) == END;
+            if (end) {
+                batches.remove(batches.size() - 1);
+            }
+            if (failure == null) {
+                try {
+                    ByteBuffer[] array = batches.toArray(new ByteBuffer[0]);
+                    long remaining = 0;
+                    for (ByteBuffer buffer : array) {
+                        remaining += buffer.remaining();
+                    }
+                    while (remaining > 0) {
+                        remaining -= channel.write(array);
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            for (ByteBuffer written : batches) {
+                written.clear();
+                free.offer(written);
+            }
+            synchronized (this) {
+                drained += batches.size();
+                notifyAll();
+            }
+            batches.clear();
+            if (end) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes all lines to the channel and forces them to the storage device.
+     *
+     * @return position of the channel after the last line
+     */
+    long sync() throws IOException {
+        if (batch.position() > 0) {
+            submit();
+        }
+        synchronized (this) {
+            while (drained < submitted && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for output");
+                }
+            }
+        }
+        checkFailure();
+        channel.force(false);
+        return channel.position();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (batch.position() > 0) {
+                submit();
+            }
+            full.put(END);
+            thread.get();
+        } catch (InterruptedException e) {
+            thread.cancel(true);
+            throw new InterruptedIOException("Interrupted while closing output");
+        } catch (ExecutionException e) {
+            throw new IOException("Output thread failed", e.getCause());
+        } finally {
+            channel.close();
+        }
+        checkFailure();
+    }
+}
@@ -0,0 +1,99 @@
+package ru.ifmo.rain.maslov.walk;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Walks file trees on the calling thread and hashes every file in its own task,
+ * so that slow opens on high-latency file systems overlap.
+ * <p>
+ * Tasks run on virtual threads when the runtime provides them and on a cached pool of
+ * daemon platform threads otherwise. The number of files in flight is bounded by
+ * the {@link OrderedManifestWriter} capacity, which also keeps the output order.
+ */
+class AsyncWalker extends SimpleFileVisitor<Path> implements RecursiveWalk.Walker {
+    private final ExecutorService executor = newExecutor();
+    private final OrderedManifestWriter writer;
+    private final Digester digester;
+    private final Deque<WalkMetrics.DirectoryEvent> directories = new ArrayDeque<>();
+
+    AsyncWalker(OrderedManifestWriter writer, Digester digester) {
+        this.writer = writer;
+        this.digester = digester;
+    }
+
+    private static ExecutorService newExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "walk-hash");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    @Override
+    public void walk(Path start) throws IOException {
+        Files.walkFileTree(start, this);
+    }
+
+    @Override
+    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+        if (!digester.getFilter().enter(dir)) {
+            return FileVisitResult.SKIP_SUBTREE;
+        }
+        digester.getMetrics().pause(directories.peek());
+        directories.push(digester.getMetrics().enter());
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+        if (digester.getFilter().accept(path, attrs)) {
+            // waiting for a slot of files in flight is not listing
+            digester.getMetrics().pause(directories.peek());
+            writer.submit(executor.submit(() -> digester.digest(path, attrs)), path.toString());
+            digester.getMetrics().resume(directories.peek());
+        }
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFileFailed(Path path, IOException e) throws IOException {
+        if (digester.getFilter().accept(path)) {
+            writer.write(digester.failed(path, e), path.toString());
+        }
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+        digester.getMetrics().exit(directories.pop(), dir);
+        digester.getMetrics().resume(directories.peek());
+        if (e != null) {
+            throw e;
+        }
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writer.flush();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
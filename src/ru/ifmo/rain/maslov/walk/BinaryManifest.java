@@ -0,0 +1,271 @@
+package ru.ifmo.rain.maslov.walk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Memory-mapped binary manifest written by {@link BinaryManifestWriter}.
+ * <p>
+ * The file is mapped in windows of {@link #WINDOW} bytes. Records are read in place through
+ * {@link Cursor}, which can start at any record number using the block index. Manifests sorted
+ * by path can also be searched by path, comparing only the first path of each block.
+ */
+class BinaryManifest {
+    static final int WINDOW_BITS = 30;
+    static final long WINDOW = 1L << WINDOW_BITS;
+
+    private final ByteBuffer[] windows;
+    private final String hashName;
+    private final int hashLength;
+    private final long indexOffset;
+    private final long blocks;
+    private final long count;
+
+    private BinaryManifest(ByteBuffer[] windows, String hashName, int hashLength,
+                           long indexOffset, long blocks, long count) {
+        this.windows = windows;
+        this.hashName = hashName;
+        this.hashLength = hashLength;
+        this.indexOffset = indexOffset;
+        this.blocks = blocks;
+        this.count = count;
+    }
+
+    /**
+     * Tells whether the file starts as a binary manifest.
+     */
+    static boolean isBinary(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+            }
+            return !magic.hasRemaining() && magic.getInt(0) == BinaryManifestWriter.MAGIC;
+        }
+    }
+
+    /**
+     * @throws IOException if the file cannot be read or is not a complete binary manifest
+     */
+    static BinaryManifest open(Path file) throws IOException {
+        ByteBuffer[] windows;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            windows = new ByteBuffer[(int) ((size + WINDOW - 1) >>> WINDOW_BITS)];
+            for (int i = 0; i < windows.length; i++) {
+                long position = (long) i << WINDOW_BITS;
+                windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position));
+            }
+            try {
+                BinaryManifest raw = new BinaryManifest(windows, null, 0, 0, 0, 0);
+                long trailer = size - BinaryManifestWriter.TRAILER;
+                if (size < 4 * Integer.BYTES + BinaryManifestWriter.TRAILER
+                        || raw.readInt(0) != BinaryManifestWriter.MAGIC
+                        || raw.readInt(size - Integer.BYTES) != BinaryManifestWriter.MAGIC) {
+                    throw new IOException("Not a complete binary manifest: " + file);
+                }
+                if (raw.readInt(Integer.BYTES) != BinaryManifestWriter.VERSION) {
+                    throw new IOException("Unsupported binary manifest version: " + file);
+                }
+                int hashLength = raw.readInt(2 * Integer.BYTES);
+                byte[] name = new byte[raw.readInt(3 * Integer.BYTES)];
+                windows[0].get(4 * Integer.BYTES, name);
+                long indexOffset = raw.readLong(trailer);
+                long blocks = raw.readLong(trailer + Long.BYTES);
+                long count = raw.readLong(trailer + 2 * Long.BYTES);
+                if (hashLength < 0 || indexOffset < 0 || blocks < 0 || count < 0
+                        || indexOffset + blocks * 2 * Long.BYTES != trailer) {
+                    throw new IOException("Damaged binary manifest: " + file);
+                }
+                return new BinaryManifest(windows, new String(name, StandardCharsets.UTF_8), hashLength,
+                        indexOffset, blocks, count);
+            } catch (IndexOutOfBoundsException | NegativeArraySizeException e) {
+                throw new IOException("Damaged binary manifest: " + file, e);
+            }
+        }
+    }
+
+    String hashName() {
+        return hashName;
+    }
+
+    int hashLength() {
+        return hashLength;
+    }
+
+    /**
+     * Returns the number of records.
+     */
+    long size() {
+        return count;
+    }
+
+    private long blockOffset(long block) {
+        return readLong(indexOffset + block * 2 * Long.BYTES);
+    }
+
+    private long blockFirst(long block) {
+        return block == blocks ? count : readLong(indexOffset + block * 2 * Long.BYTES + Long.BYTES);
+    }
+
+    /**
+     * Returns cursor whose first {@link Cursor#next()} moves to the given record.
+     */
+    Cursor cursor(long record) {
+        if (record < 0 || record > count) {
+            throw new IndexOutOfBoundsException("Record " + record + " of " + count);
+        }
+        long lo = 0;
+        long hi = blocks - 1;
+        while (lo < hi) {
+            long mid = (lo + hi + 1) >>> 1;
+            if (blockFirst(mid) <= record) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        Cursor cursor = new Cursor(lo);
+        for (long i = blockFirst(lo); i < record; i++) {
+            cursor.next();
+        }
+        return cursor;
+    }
+
+    /**
+     * Returns number of the first record whose path is not less than the given one
+     * in unsigned order of UTF-8 bytes. The manifest must be sorted in this order.
+     */
+    long lowerBound(String path) {
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        long lo = 0;
+        long hi = blocks - 1;
+        while (lo < hi) {
+            long mid = (lo + hi + 1) >>> 1;
+            Cursor first = new Cursor(mid);
+            first.next();
+            if (first.compareTo(bytes) <= 0) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (blocks == 0) {
+            return 0;
+        }
+        Cursor cursor = new Cursor(lo);
+        while (cursor.next()) {
+            if (cursor.compareTo(bytes) >= 0) {
+                return cursor.record();
+            }
+        }
+        return count;
+    }
+
+    private int readInt(long position) {
+        return windows[(int) (position >>> WINDOW_BITS)].getInt((int) (position & (WINDOW - 1)));
+    }
+
+    private long readLong(long position) {
+        return windows[(int) (position >>> WINDOW_BITS)].getLong((int) (position & (WINDOW - 1)));
+    }
+
+    /**
+     * Sequential reader of records. Arrays returned by its accessors are overwritten by {@link #next()}.
+     */
+    class Cursor {
+        private long block;
+        private ByteBuffer window;
+        private int position;
+        private long record;
+        private long blockEnd;
+        private byte[] path = new byte[256];
+        private int pathLength;
+        private final byte[] hash = new byte[hashLength];
+
+        private Cursor(long block) {
+            this.block = block - 1;
+            this.record = block < blocks ? blockFirst(block) - 1 : count - 1;
+            this.blockEnd = record + 1;
+        }
+
+        /**
+         * Moves to the next record.
+         *
+         * @return {@code false} if there are no more records
+         */
+        boolean next() {
+            if (record + 1 >= count) {
+                record = count;
+                return false;
+            }
+            if (record + 1 == blockEnd) {
+                block++;
+                long offset = blockOffset(block);
+                window = windows[(int) (offset >>> WINDOW_BITS)];
+                position = (int) (offset & (WINDOW - 1));
+                blockEnd = blockFirst(block + 1);
+            }
+            record++;
+            int shared = readVarint();
+            int suffix = readVarint();
+            if (shared > pathLength) {
+                throw new IllegalStateException("Damaged binary manifest record " + record);
+            }
+            if (path.length < shared + suffix) {
+                path = Arrays.copyOf(path, Math.max(shared + suffix, path.length * 2));
+            }
+            window.get(position, path, shared, suffix);
+            pathLength = shared + suffix;
+            position += suffix;
+            window.get(position, hash);
+            position += hashLength;
+            return true;
+        }
+
+        private int readVarint() {
+            int result = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = window.get(position++);
+                result |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return result;
+                }
+            }
+        }
+
+        /**
+         * Returns the number of the current record.
+         */
+        long record() {
+            return record;
+        }
+
+        byte[] hash() {
+            return hash;
+        }
+
+        /**
+         * Returns array holding UTF-8 path of the current record in the first {@link #pathLength()} bytes.
+         */
+        byte[] pathBytes() {
+            return path;
+        }
+
+        int pathLength() {
+            return pathLength;
+        }
+
+        String path() {
+            return new String(path, 0, pathLength, StandardCharsets.UTF_8);
+        }
+
+        private int compareTo(byte[] other) {
+            return Arrays.compareUnsigned(path, 0, pathLength, other, 0, other.length);
+        }
+    }
+}
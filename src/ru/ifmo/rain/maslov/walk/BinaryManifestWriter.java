@@ -0,0 +1,161 @@
+package ru.ifmo.rain.maslov.walk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes binary manifest, read back by {@link BinaryManifest}.
+ * <p>
+ * File layout, all fixed-width numbers big-endian:
+ * <pre>
+ * header:  int magic, int version, int digest length, int name length, algorithm name in UTF-8
+ * block:   records, the first one with empty shared prefix
+ * record:  varint shared prefix length, varint suffix length, path suffix in UTF-8, digest
+ * index:   aligned to 8 bytes, long block offset, long number of the first record in block, for each block
+ * trailer: long index offset, long block count, long record count, int magic
+ * </pre>
+ * Path of each record shares a prefix with the path of the previous record in the same block.
+ * A new block starts every {@link #BLOCK_RECORDS} records and wherever the next record would
+ * cross a boundary of {@link BinaryManifest#WINDOW} bytes; the gap before such block is zero-padded.
+ */
+class BinaryManifestWriter implements ManifestWriter {
+    static final int MAGIC = 0x52574D42;
+    static final int VERSION = 1;
+    static final int BLOCK_RECORDS = 64;
+    static final int TRAILER = 3 * Long.BYTES + Integer.BYTES;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private final int hashLength;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long position;
+    private long records;
+    private byte[] previous = new byte[0];
+    private int inBlock = BLOCK_RECORDS;
+    private long[] index = new long[64];
+    private int blocks;
+
+    BinaryManifestWriter(FileChannel channel, String hashName, int hashLength) throws IOException {
+        this.channel = channel;
+        this.hashLength = hashLength;
+        byte[] name = hashName.getBytes(StandardCharsets.UTF_8);
+        ensure(4 * Integer.BYTES + name.length);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(hashLength).putInt(name.length).put(name);
+        position = buffer.position();
+    }
+
+    @Override
+    public void write(byte[] hash, String path) throws IOException {
+        if (hash.length != hashLength) {
+            throw new IOException("Digest of " + path + " has " + hash.length + " bytes, expected " + hashLength);
+        }
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        int shared = 0;
+        if (inBlock < BLOCK_RECORDS) {
+            shared = Arrays.mismatch(previous, bytes);
+            if (shared < 0) {
+                shared = bytes.length;
+            }
+        }
+        int length = varintLength(shared) + varintLength(bytes.length - shared) + bytes.length - shared + hashLength;
+        if (inBlock == BLOCK_RECORDS || crossesWindow(length)) {
+            long full = varintLength(0) + varintLength(bytes.length) + bytes.length + hashLength;
+            if (full > BinaryManifest.WINDOW) {
+                throw new IOException("Manifest record is too long: " + path);
+            }
+            if (crossesWindow(full)) {
+                pad(BinaryManifest.WINDOW - (position & (BinaryManifest.WINDOW - 1)));
+            }
+            startBlock();
+            shared = 0;
+            length = (int) full;
+        }
+        ensure(length);
+        putVarint(shared);
+        putVarint(bytes.length - shared);
+        buffer.put(bytes, shared, bytes.length - shared);
+        buffer.put(hash);
+        position += length;
+        previous = bytes;
+        inBlock++;
+        records++;
+    }
+
+    private boolean crossesWindow(long length) {
+        return (position >>> BinaryManifest.WINDOW_BITS) != ((position + length - 1) >>> BinaryManifest.WINDOW_BITS);
+    }
+
+    private void startBlock() {
+        if (2 * blocks + 2 > index.length) {
+            index = Arrays.copyOf(index, index.length * 2);
+        }
+        index[2 * blocks] = position;
+        index[2 * blocks + 1] = records;
+        blocks++;
+        inBlock = 0;
+    }
+
+    private void pad(long length) throws IOException {
+        for (long i = 0; i < length; i++) {
+            ensure(1);
+            buffer.put((byte) 0);
+        }
+        position += length;
+    }
+
+    static int varintLength(int value) {
+        int length = 1;
+        while ((value >>>= 7) != 0) {
+            length++;
+        }
+        return length;
+    }
+
+    private void putVarint(int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) (value & 0x7f | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Makes room for {@code length} bytes, writing buffered bytes to the channel if necessary.
+     */
+    private void ensure(int length) throws IOException {
+        if (buffer.remaining() < length) {
+            flush();
+            if (buffer.capacity() < length) {
+                buffer = ByteBuffer.allocate(length);
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            pad((Long.BYTES - position % Long.BYTES) % Long.BYTES);
+            long indexOffset = position;
+            for (int i = 0; i < 2 * blocks; i++) {
+                ensure(Long.BYTES);
+                buffer.putLong(index[i]);
+            }
+            ensure(TRAILER);
+            buffer.putLong(indexOffset).putLong(blocks).putLong(records).putInt(MAGIC);
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
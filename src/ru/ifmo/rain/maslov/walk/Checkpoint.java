@@ -0,0 +1,96 @@
+package ru.ifmo.rain.maslov.walk;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+
+/**
+ * Progress of a walk, saved periodically with {@code --checkpoint} to resume the walk after a failure.
+ * <p>
+ * Checkpoint file layout:
+ * <pre>
+ * RecursiveWalk checkpoint 1
+ * line &lt;number of input lines walked before the current one&gt;
+ * position &lt;indices in walk order of the entries leading from the root to the last written record&gt;
+ * output &lt;length of the output up to and including that record&gt;
+ * </pre>
+ * An empty position stands for the beginning of the line. The file is written to a temporary file
+ * that atomically replaces the previous checkpoint.
+ */
+class Checkpoint {
+    private static final String HEADER = "RecursiveWalk checkpoint 1";
+
+    final long line;
+    final int[] position;
+    final long offset;
+
+    Checkpoint(long line, int[] position, long offset) {
+        this.line = line;
+        this.position = position;
+        this.offset = offset;
+    }
+
+    /**
+     * Reads the checkpoint file.
+     *
+     * @return the checkpoint or {@code null} if the file does not exist
+     * @throws IOException if the file cannot be read or is malformed
+     */
+    static Checkpoint load(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (BufferedReader in = Files.newBufferedReader(file)) {
+            if (!HEADER.equals(in.readLine())) {
+                throw new IOException("Not a checkpoint file: " + file);
+            }
+            long line = Long.parseLong(value(in, "line"));
+            String position = value(in, "position").trim();
+            int[] indices = position.isEmpty()
+                    ? new int[0]
+                    : Arrays.stream(position.split(" ")).mapToInt(Integer::parseInt).toArray();
+            long offset = Long.parseLong(value(in, "output"));
+            if (line < 0 || offset < 0 || Arrays.stream(indices).anyMatch(index -> index < 0)) {
+                throw new IOException("Malformed checkpoint file: " + file);
+            }
+            return new Checkpoint(line, indices, offset);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed checkpoint file: " + file, e);
+        }
+    }
+
+    private static String value(BufferedReader in, String key) throws IOException {
+        String line = in.readLine();
+        if (line == null || !line.startsWith(key + " ") && !line.equals(key)) {
+            throw new IOException("Malformed checkpoint file: " + key + " expected");
+        }
+        return line.substring(key.length()).trim();
+    }
+
+    void save(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                Writer out = Channels.newWriter(channel, StandardCharsets.UTF_8);
+                out.write(HEADER + "\n");
+                out.write("line " + line + "\n");
+                out.write("position");
+                for (int index : position) {
+                    out.write(" " + index);
+                }
+                out.write("\noutput " + offset + "\n");
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
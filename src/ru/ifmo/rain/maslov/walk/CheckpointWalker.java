@@ -0,0 +1,158 @@
+package ru.ifmo.rain.maslov.walk;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+
+/**
+ * Walks input roots sequentially, saving a {@link Checkpoint} after a record every {@code interval}
+ * nanoseconds, and resumes an interrupted walk from a checkpoint.
+ * <p>
+ * Entries are identified by their indices in walk order, so a resumed walk skips, without hashing them,
+ * files and whole subtrees that precede the last saved record in the directories leading to it.
+ * If these directories have changed, the walk goes on from the first entry past the saved index.
+ */
+class CheckpointWalker implements RecursiveWalk.Walker {
+    private final AsyncManifestWriter writer;
+    private final Path file;
+    private final long interval;
+    private final Visitor visitor;
+    private long line;
+    /**
+     * Position of the last written record in the current root, or {@code null} if not resuming.
+     */
+    private int[] target;
+    private long saved = System.nanoTime();
+
+    /**
+     * @param interval nanoseconds between checkpoints
+     * @param resume   checkpoint to resume from, whose lines are already skipped, or {@code null}
+     */
+    CheckpointWalker(AsyncManifestWriter writer, Digester digester, Path file, long interval, Checkpoint resume) {
+        this.writer = writer;
+        this.file = file;
+        this.interval = interval;
+        this.visitor = new Visitor(writer, digester);
+        if (resume != null) {
+            this.line = resume.line;
+            this.target = resume.position.length > 0 ? resume.position : null;
+        }
+    }
+
+    @Override
+    public void walk(Path start) throws IOException {
+        visitor.depth = 0;
+        visitor.counters[0] = 0;
+        Files.walkFileTree(start, visitor);
+        target = null;
+    }
+
+    @Override
+    public void lineWritten() throws IOException {
+        line++;
+        target = null;
+        checkpoint(new int[0]);
+    }
+
+    private void checkpoint(int[] position) throws IOException {
+        long now = System.nanoTime();
+        if (now - saved >= interval) {
+            new Checkpoint(line, position, writer.sync()).save(file);
+            saved = now;
+        }
+    }
+
+    private enum Action {
+        SKIP, ENTER, WALK
+    }
+
+    private class Visitor extends RecursiveWalk.MyVisitor {
+        /**
+         * Number of visited entries of the directories on the current path; the root is the only entry of level 0.
+         */
+        private int[] counters = new int[16];
+        private int depth;
+
+        Visitor(ManifestWriter writer, Digester digester) {
+            super(writer, digester);
+        }
+
+        /**
+         * Counts the next entry of the current directory and decides whether it was written before the checkpoint.
+         */
+        private Action next(boolean directory) {
+            int index = counters[depth]++;
+            if (target == null) {
+                return Action.WALK;
+            }
+            if (depth >= target.length || index > target[depth]) {
+                target = null;
+                return Action.WALK;
+            }
+            if (index < target[depth]) {
+                return Action.SKIP;
+            }
+            if (depth == target.length - 1) {
+                target = null;
+                return Action.SKIP;
+            }
+            if (directory) {
+                return Action.ENTER;
+            }
+            target = null;
+            return Action.WALK;
+        }
+
+        private int[] position() {
+            int[] position = new int[depth + 1];
+            for (int i = 0; i <= depth; i++) {
+                position[i] = counters[i] - 1;
+            }
+            return position;
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            if (next(true) == Action.SKIP) {
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+            FileVisitResult result = super.preVisitDirectory(dir, attrs);
+            if (result == FileVisitResult.CONTINUE) {
+                if (++depth == counters.length) {
+                    counters = Arrays.copyOf(counters, counters.length * 2);
+                }
+                counters[depth] = 0;
+            }
+            return result;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+            if (next(false) != Action.SKIP) {
+                super.visitFile(path, attrs);
+                checkpoint(position());
+            }
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path path, IOException e) throws IOException {
+            if (next(false) != Action.SKIP) {
+                super.visitFileFailed(path, e);
+                checkpoint(position());
+            }
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+            depth--;
+            // if still resuming, the saved record is gone and everything after this directory is new
+            target = null;
+            return super.postVisitDirectory(dir, e);
+        }
+    }
+}
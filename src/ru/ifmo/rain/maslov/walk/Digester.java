@@ -0,0 +1,227 @@
+package ru.ifmo.rain.maslov.walk;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Computes digests of files with the selected {@link FileHasher} reading them through {@link IoEngine}.
+ */
+class Digester {
+    /**
+     * Number of samples that selects hashing of whole file contents.
+     */
+    static final int FULL = -1;
+    /**
+     * Prefix of sampled fingerprints in text manifests.
+     */
+    static final String FINGERPRINT_TAG = "fp:";
+    /**
+     * Prefix of tree hashes in text manifests.
+     */
+    static final String TREE_TAG = "tree:";
+
+    private final FileHasher hasher;
+    private final IoEngine io;
+    private final HashCache cache;
+    private final WalkMetrics metrics;
+    private final int samples;
+    private final long chunk;
+    private final WalkFilter filter;
+    /**
+     * Digests of visited regular files by file key, or futures of digests being computed,
+     * or {@code null} if every name is hashed.
+     */
+    private final ConcurrentMap<Object, Object> inodes;
+    private final byte[] zero;
+
+    /**
+     * @param cache   digest cache or {@code null} to hash every file
+     * @param samples number of samples between head and tail for {@link IoEngine#sample fingerprints},
+     *                or {@link #FULL} to hash whole contents
+     * @param chunk   chunk size of {@link IoEngine#tree tree hashes}, or 0 to hash contents sequentially
+     * @param filter  entries to walk
+     * @param inodes  whether to hash files with the same {@link BasicFileAttributes#fileKey() file key},
+     *                such as hard links, only once
+     */
+    Digester(FileHasher hasher, IoEngine io, HashCache cache, WalkMetrics metrics, int samples, long chunk,
+             WalkFilter filter, boolean inodes) {
+        this.hasher = hasher;
+        this.io = io;
+        this.cache = cache;
+        this.metrics = metrics;
+        this.samples = samples;
+        this.chunk = chunk;
+        this.filter = filter;
+        this.inodes = inodes ? new ConcurrentHashMap<>() : null;
+        this.zero = new byte[hasher.length()];
+    }
+
+    FileHasher getHasher() {
+        return hasher;
+    }
+
+    WalkMetrics getMetrics() {
+        return metrics;
+    }
+
+    WalkFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Returns name of the digests, which differs between full hashes, fingerprints and tree hashes.
+     */
+    static String algorithm(FileHasher hasher, int samples, long chunk) {
+        if (samples != FULL) {
+            return "fp" + samples + ":" + hasher.name();
+        }
+        return chunk > 0 ? "tree" + chunk + ":" + hasher.name() : hasher.name();
+    }
+
+    /**
+     * Returns prefix of the digests in text manifests.
+     */
+    static String tag(int samples, long chunk) {
+        return samples != FULL ? FINGERPRINT_TAG : chunk > 0 ? TREE_TAG : "";
+    }
+
+    /**
+     * Returns prefix in text manifests of the digests with the given {@link #algorithm name}.
+     */
+    static String tag(String algorithm) {
+        int colon = algorithm.indexOf(':');
+        if (colon < 0) {
+            return "";
+        }
+        int end = 0;
+        while (end < colon && !Character.isDigit(algorithm.charAt(end))) {
+            end++;
+        }
+        return algorithm.substring(0, end) + ":";
+    }
+
+    /**
+     * Digest written for files that cannot be read.
+     */
+    byte[] zero() {
+        return zero;
+    }
+
+    /**
+     * Returns digest of the file contents or {@link #zero()} if the file cannot be read.
+     */
+    byte[] digest(Path file) {
+        try {
+            return read(file);
+        } catch (IOException e) {
+            metrics.readError();
+            return zero;
+        }
+    }
+
+    /**
+     * Returns digest of the file with the given attributes, consulting the cache first.
+     * Files of other file systems than the default one, such as archive entries, are not cached.
+     * If inodes are tracked, a regular file already hashed under another name is not read again.
+     */
+    byte[] digest(Path file, BasicFileAttributes attrs) {
+        metrics.file();
+        Object key = inodes != null && attrs.isRegularFile() ? attrs.fileKey() : null;
+        if (key == null) {
+            return lookup(file, attrs);
+        }
+        CompletableFuture<byte[]> pending = new CompletableFuture<>();
+        Object known = inodes.putIfAbsent(key, pending);
+        if (known == null) {
+            byte[] result = zero;
+            try {
+                result = lookup(file, attrs);
+            } finally {
+                inodes.replace(key, pending, result);
+                pending.complete(result);
+            }
+            return result;
+        }
+        byte[] result;
+        if (known instanceof byte[]) {
+            result = (byte[]) known;
+        } else {
+            @SuppressWarnings("unchecked")
+            CompletableFuture<byte[]> computing = (CompletableFuture<byte[]>) known;
+            result = computing.join();
+        }
+        metrics.linked();
+        if (cache != null && result != zero && file.getFileSystem() == FileSystems.getDefault()) {
+            cache.put(file, attrs, result);
+        }
+        return result;
+    }
+
+    private byte[] lookup(Path file, BasicFileAttributes attrs) {
+        if (cache == null || file.getFileSystem() != FileSystems.getDefault()) {
+            return digest(file);
+        }
+        byte[] cached = cache.get(file, attrs);
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            byte[] result = read(file);
+            cache.put(file, attrs, result);
+            return result;
+        } catch (IOException e) {
+            metrics.readError();
+            return zero;
+        }
+    }
+
+    /**
+     * Returns {@link #zero()} digest written for a file or directory that cannot be visited.
+     */
+    byte[] failed(Path file, IOException e) {
+        metrics.failed(file, e);
+        return zero;
+    }
+
+    /**
+     * Returns digest of the file contents, its fingerprint or its tree hash.
+     *
+     * @throws IOException if the file cannot be read
+     */
+    byte[] read(Path file) throws IOException {
+        FileHasher.Digest digest = hasher.newDigest();
+        if (samples != FULL) {
+            io.sample(file, samples, digest::update);
+        } else if (chunk > 0) {
+            io.tree(file, chunk, hasher, digest::update);
+        } else {
+            io.read(file, digest::update);
+        }
+        return digest.finish();
+    }
+
+    /**
+     * Returns digest of the file as {@link #read(Path)} does, also passing whole contents to the other digest,
+     * in the same pass unless the digest is a fingerprint or a tree hash.
+     *
+     * @throws IOException if the file cannot be read
+     */
+    byte[] read(Path file, FileHasher.Digest contents) throws IOException {
+        if (samples != FULL || chunk > 0) {
+            io.read(file, contents::update);
+            return read(file);
+        }
+        FileHasher.Digest digest = hasher.newDigest();
+        io.read(file, buffer -> {
+            int position = buffer.position();
+            contents.update(buffer);
+            digest.update(buffer.position(position));
+        });
+        return digest.finish();
+    }
+}
@@ -0,0 +1,167 @@
+package ru.ifmo.rain.maslov.walk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Finds files with equal contents.
+ * <p>
+ * Traversal only groups regular non-empty files by size. Files of a size shared with another file
+ * are then compared by a hash of their first and last {@link #SAMPLE} bytes, and only files that
+ * still collide are hashed in full. Whatever hash the manifest uses, clusters are confirmed by
+ * {@link #CONFIRM_HASHER SHA-256} of the contents, computed in the same pass, so that collisions
+ * of a short hash are not reported as duplicates. Each cluster of duplicates is written as consecutive
+ * records with the same hash, clusters and files within them in the order of discovery.
+ * <p>
+ * A file reached more than once, through repeated or overlapping roots or through another hard link,
+ * is a candidate only once, identified by its file key or, if there is none, by its real path.
+ */
+class DuplicateFinder extends SimpleFileVisitor<Path> implements RecursiveWalk.Walker {
+    static final int SAMPLE = 4096;
+    private static final FileHasher SAMPLE_HASHER = new FileHashers.XxHash64();
+    private static final FileHasher CONFIRM_HASHER = new FileHashers.Sha256();
+
+    private final ManifestWriter writer;
+    private final Digester digester;
+    private final Map<Long, List<Path>> bySize = new LinkedHashMap<>();
+    private final Set<Object> seen = new HashSet<>();
+
+    DuplicateFinder(ManifestWriter writer, Digester digester) {
+        this.writer = writer;
+        this.digester = digester;
+    }
+
+    @Override
+    public void walk(Path start) throws IOException {
+        Files.walkFileTree(start, this);
+    }
+
+    @Override
+    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+        return digester.getFilter().enter(dir) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+    }
+
+    @Override
+    public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+        if (attrs.isRegularFile() && attrs.size() > 0 && digester.getFilter().accept(path, attrs)
+                && seen.add(identity(path, attrs))) {
+            bySize.computeIfAbsent(attrs.size(), size -> new ArrayList<>(1)).add(path);
+        }
+        return FileVisitResult.CONTINUE;
+    }
+
+    private static Object identity(Path path, BasicFileAttributes attrs) {
+        Object key = attrs.fileKey();
+        if (key != null) {
+            return key;
+        }
+        try {
+            return path.toRealPath(LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            return path.toAbsolutePath().normalize();
+        }
+    }
+
+    @Override
+    public FileVisitResult visitFileFailed(Path path, IOException e) {
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        for (Map.Entry<Long, List<Path>> sized : bySize.entrySet()) {
+            List<Path> candidates = sized.getValue();
+            if (candidates.size() < 2) {
+                continue;
+            }
+            long size = sized.getKey();
+            Collection<List<Path>> groups = size > 2 * SAMPLE
+                    ? group(candidates, path -> sample(path, size)).values()
+                    : List.of(candidates);
+            for (List<Path> group : groups) {
+                if (group.size() < 2) {
+                    continue;
+                }
+                Map<Path, byte[]> hashes = new HashMap<>();
+                for (List<Path> cluster : group(group, path -> digest(path, hashes)).values()) {
+                    if (cluster.size() > 1) {
+                        for (Path path : cluster) {
+                            writer.write(hashes.get(path), path.toString());
+                        }
+                    }
+                }
+            }
+        }
+        bySize.clear();
+        seen.clear();
+    }
+
+    /**
+     * Splits paths by key, dropping paths with {@code null} key.
+     */
+    private static Map<ByteBuffer, List<Path>> group(List<Path> paths, Function<Path, ByteBuffer> key) {
+        Map<ByteBuffer, List<Path>> groups = new LinkedHashMap<>();
+        for (Path path : paths) {
+            ByteBuffer value = key.apply(path);
+            if (value != null) {
+                groups.computeIfAbsent(value, k -> new ArrayList<>()).add(path);
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Returns SHA-256 of the file contents, putting its digest for the manifest to the hashes.
+     */
+    private ByteBuffer digest(Path path, Map<Path, byte[]> hashes) {
+        FileHasher.Digest contents = CONFIRM_HASHER.newDigest();
+        try {
+            hashes.put(path, digester.read(path, contents));
+        } catch (IOException e) {
+            return null;
+        }
+        return ByteBuffer.wrap(contents.finish());
+    }
+
+    private static ByteBuffer sample(Path path, long size) {
+        ByteBuffer buffer = ByteBuffer.allocate(2 * SAMPLE);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            readFully(channel, buffer, 0, SAMPLE);
+            readFully(channel, buffer, size - SAMPLE, SAMPLE);
+        } catch (IOException e) {
+            return null;
+        }
+        buffer.flip();
+        FileHasher.Digest digest = SAMPLE_HASHER.newDigest();
+        digest.update(buffer);
+        return ByteBuffer.wrap(digest.finish());
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, int length) throws IOException {
+        buffer.limit(buffer.position() + length);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("File was truncated");
+            }
+            position += read;
+        }
+    }
+}
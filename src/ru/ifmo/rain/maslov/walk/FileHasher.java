@@ -0,0 +1,43 @@
+package ru.ifmo.rain.maslov.walk;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hash algorithm used by {@link RecursiveWalk}.
+ * <p>
+ * Built-in algorithms are listed in {@link FileHashers}, additional ones may be registered
+ * as {@link java.util.ServiceLoader service providers} and selected by {@link #name()}.
+ */
+public interface FileHasher {
+    /**
+     * Returns name used to select the algorithm from the command line.
+     */
+    String name();
+
+    /**
+     * Returns length of the digest in bytes.
+     */
+    int length();
+
+    /**
+     * Creates new digest in its initial state.
+     */
+    Digest newDigest();
+
+    /**
+     * Hash state of a single file.
+     */
+    interface Digest {
+        /**
+         * Processes all remaining bytes of the buffer, advancing its position to its limit
+         * as {@link java.security.MessageDigest#update(ByteBuffer)} does.
+         * The buffer is not retained after the call returns.
+         */
+        void update(ByteBuffer buffer);
+
+        /**
+         * Returns the digest of {@link #length()} bytes, most significant byte first.
+         */
+        byte[] finish();
+    }
+}
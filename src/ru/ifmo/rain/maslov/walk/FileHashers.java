@@ -0,0 +1,362 @@
+package ru.ifmo.rain.maslov.walk;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.zip.CRC32C;
+
+/**
+ * Built-in {@link FileHasher} implementations and lookup by name.
+ */
+final class FileHashers {
+    static final String DEFAULT = "fnv32";
+
+    private static final Map<String, FileHasher> BUILT_IN = new LinkedHashMap<>();
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    static {
+        register(new Fnv32());
+        register(new Fnv64());
+        register(new XxHash64());
+        register(new Crc32c());
+        register(new Sha256());
+    }
+
+    private FileHashers() {
+    }
+
+    private static void register(FileHasher hasher) {
+        BUILT_IN.put(hasher.name(), hasher);
+    }
+
+    /**
+     * Returns hasher with the given name, looking for service providers if there is no built-in one.
+     *
+     * @return the hasher or {@code null} if there is no such algorithm
+     */
+    static FileHasher forName(String name) {
+        FileHasher hasher = BUILT_IN.get(name);
+        if (hasher != null) {
+            return hasher;
+        }
+        for (FileHasher provided : ServiceLoader.load(FileHasher.class)) {
+            if (provided.name().equals(name)) {
+                return provided;
+            }
+        }
+        return null;
+    }
+
+    static String names() {
+        return String.join(", ", BUILT_IN.keySet());
+    }
+
+    private static byte[] toBytes(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    private static byte[] toBytes(long value) {
+        byte[] result = new byte[Long.BYTES];
+        for (int i = result.length - 1; i >= 0; --i, value >>>= 8) {
+            result[i] = (byte) value;
+        }
+        return result;
+    }
+
+    /**
+     * 32-bit FNV-1, the original output of {@link RecursiveWalk}.
+     * <p>
+     * The kernel loads eight bytes at a time and applies the unrolled per-byte steps
+     * in little-endian order, so the result is the same as of the byte loop.
+     */
+    static class Fnv32 implements FileHasher {
+        static final int PRIME = 0x01000193;
+        static final int OFFSET_BASIS = 0x811c9dc5;
+
+        @Override
+        public String name() {
+            return "fnv32";
+        }
+
+        @Override
+        public int length() {
+            return Integer.BYTES;
+        }
+
+        @Override
+        public Digest newDigest() {
+            return new Digest() {
+                private int hash = OFFSET_BASIS;
+
+                @Override
+                public void update(ByteBuffer buffer) {
+                    hash = kernel(hash, buffer, buffer.position(), buffer.limit());
+                    buffer.position(buffer.limit());
+                }
+
+                @Override
+                public byte[] finish() {
+                    return toBytes(hash);
+                }
+            };
+        }
+
+        static int kernel(int h, ByteBuffer buffer, int from, int to) {
+            int i = from;
+            for (; i + Long.BYTES <= to; i += Long.BYTES) {
+                long word = (long) LONG.get(buffer, i);
+                h = (h * PRIME) ^ ((int) word & 0xff);
+                h = (h * PRIME) ^ ((int) (word >>> 8) & 0xff);
+                h = (h * PRIME) ^ ((int) (word >>> 16) & 0xff);
+                h = (h * PRIME) ^ ((int) (word >>> 24) & 0xff);
+                h = (h * PRIME) ^ ((int) (word >>> 32) & 0xff);
+                h = (h * PRIME) ^ ((int) (word >>> 40) & 0xff);
+                h = (h * PRIME) ^ ((int) (word >>> 48) & 0xff);
+                h = (h * PRIME) ^ (int) (word >>> 56);
+            }
+            for (; i < to; ++i) {
+                h = (h * PRIME) ^ (buffer.get(i) & 0xff);
+            }
+            return h;
+        }
+    }
+
+    /**
+     * 64-bit FNV-1, processing bytes in the same order and with the same kernel as {@link Fnv32}.
+     */
+    static class Fnv64 implements FileHasher {
+        static final long PRIME = 0x100000001b3L;
+        static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+
+        @Override
+        public String name() {
+            return "fnv64";
+        }
+
+        @Override
+        public int length() {
+            return Long.BYTES;
+        }
+
+        @Override
+        public Digest newDigest() {
+            return new Digest() {
+                private long hash = OFFSET_BASIS;
+
+                @Override
+                public void update(ByteBuffer buffer) {
+                    hash = kernel(hash, buffer, buffer.position(), buffer.limit());
+                    buffer.position(buffer.limit());
+                }
+
+                @Override
+                public byte[] finish() {
+                    return toBytes(hash);
+                }
+            };
+        }
+
+        static long kernel(long h, ByteBuffer buffer, int from, int to) {
+            int i = from;
+            for (; i + Long.BYTES <= to; i += Long.BYTES) {
+                long word = (long) LONG.get(buffer, i);
+                h = (h * PRIME) ^ (word & 0xff);
+                h = (h * PRIME) ^ ((word >>> 8) & 0xff);
+                h = (h * PRIME) ^ ((word >>> 16) & 0xff);
+                h = (h * PRIME) ^ ((word >>> 24) & 0xff);
+                h = (h * PRIME) ^ ((word >>> 32) & 0xff);
+                h = (h * PRIME) ^ ((word >>> 40) & 0xff);
+                h = (h * PRIME) ^ ((word >>> 48) & 0xff);
+                h = (h * PRIME) ^ (word >>> 56);
+            }
+            for (; i < to; ++i) {
+                h = (h * PRIME) ^ (buffer.get(i) & 0xff);
+            }
+            return h;
+        }
+    }
+
+    /**
+     * <a href="https://github.com/Cyan4973/xxHash/blob/dev/doc/xxhash_spec.md">xxHash64</a> with zero seed.
+     */
+    static class XxHash64 implements FileHasher {
+        private static final long P1 = 0x9E3779B185EBCA87L;
+        private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+        private static final long P3 = 0x165667B19E3779F9L;
+        private static final long P4 = 0x85EBCA77C2B2AE63L;
+        private static final long P5 = 0x27D4EB2F165667C5L;
+        private static final int STRIPE = 32;
+
+        @Override
+        public String name() {
+            return "xxh64";
+        }
+
+        @Override
+        public int length() {
+            return Long.BYTES;
+        }
+
+        @Override
+        public Digest newDigest() {
+            return new Digest() {
+                private long v1 = P1 + P2;
+                private long v2 = P2;
+                private long v3 = 0;
+                private long v4 = -P1;
+                private long total;
+                private final ByteBuffer pending = ByteBuffer.allocate(STRIPE);
+
+                @Override
+                public void update(ByteBuffer buffer) {
+                    int i = buffer.position();
+                    int limit = buffer.limit();
+                    total += limit - i;
+                    buffer.position(limit);
+                    if (pending.position() > 0) {
+                        while (i < limit && pending.hasRemaining()) {
+                            pending.put(buffer.get(i++));
+                        }
+                        if (pending.hasRemaining()) {
+                            return;
+                        }
+                        stripe(pending, 0);
+                        pending.clear();
+                    }
+                    for (; i + STRIPE <= limit; i += STRIPE) {
+                        stripe(buffer, i);
+                    }
+                    while (i < limit) {
+                        pending.put(buffer.get(i++));
+                    }
+                }
+
+                private void stripe(ByteBuffer buffer, int i) {
+                    v1 = round(v1, (long) LONG.get(buffer, i));
+                    v2 = round(v2, (long) LONG.get(buffer, i + 8));
+                    v3 = round(v3, (long) LONG.get(buffer, i + 16));
+                    v4 = round(v4, (long) LONG.get(buffer, i + 24));
+                }
+
+                @Override
+                public byte[] finish() {
+                    long h;
+                    if (total >= STRIPE) {
+                        h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+                                + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+                        h = merge(h, v1);
+                        h = merge(h, v2);
+                        h = merge(h, v3);
+                        h = merge(h, v4);
+                    } else {
+                        h = P5;
+                    }
+                    h += total;
+                    int i = 0;
+                    int limit = pending.position();
+                    for (; i + 8 <= limit; i += 8) {
+                        h ^= round(0, (long) LONG.get(pending, i));
+                        h = Long.rotateLeft(h, 27) * P1 + P4;
+                    }
+                    if (i + 4 <= limit) {
+                        h ^= ((int) INT.get(pending, i) & 0xffffffffL) * P1;
+                        h = Long.rotateLeft(h, 23) * P2 + P3;
+                        i += 4;
+                    }
+                    for (; i < limit; ++i) {
+                        h ^= (pending.get(i) & 0xff) * P5;
+                        h = Long.rotateLeft(h, 11) * P1;
+                    }
+                    h ^= h >>> 33;
+                    h *= P2;
+                    h ^= h >>> 29;
+                    h *= P3;
+                    h ^= h >>> 32;
+                    return toBytes(h);
+                }
+            };
+        }
+
+        private static long round(long acc, long input) {
+            return Long.rotateLeft(acc + input * P2, 31) * P1;
+        }
+
+        private static long merge(long acc, long value) {
+            return (acc ^ round(0, value)) * P1 + P4;
+        }
+    }
+
+    /**
+     * CRC-32C computed by {@link CRC32C}, which is intrinsified on modern CPUs.
+     */
+    static class Crc32c implements FileHasher {
+        @Override
+        public String name() {
+            return "crc32c";
+        }
+
+        @Override
+        public int length() {
+            return Integer.BYTES;
+        }
+
+        @Override
+        public Digest newDigest() {
+            CRC32C crc = new CRC32C();
+            return new Digest() {
+                @Override
+                public void update(ByteBuffer buffer) {
+                    crc.update(buffer);
+                }
+
+                @Override
+                public byte[] finish() {
+                    return toBytes((int) crc.getValue());
+                }
+            };
+        }
+    }
+
+    /**
+     * SHA-256 provided by {@link MessageDigest}.
+     */
+    static class Sha256 implements FileHasher {
+        @Override
+        public String name() {
+            return "sha256";
+        }
+
+        @Override
+        public int length() {
+            return 32;
+        }
+
+        @Override
+        public Digest newDigest() {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not supported", e);
+            }
+            return new Digest() {
+                @Override
+                public void update(ByteBuffer buffer) {
+                    digest.update(buffer);
+                }
+
+                @Override
+                public byte[] finish() {
+                    return digest.digest();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,535 @@
+package ru.ifmo.rain.maslov.walk;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent cache of file digests keyed by absolute path and validated by file key, size and modification time.
+ * <p>
+ * Cache file layout, all numbers big-endian:
+ * <pre>
+ * header:  int magic, int version, int digest length, int name length, algorithm name in UTF-8
+ * record:  int path length, path in UTF-8, int key length, file key in UTF-8, long size, long mtime nanos, digest
+ * block:   long offset of the first record of the block, int path length, its path
+ * trailer: long offset of the blocks, long block count, int magic
+ * </pre>
+ * Records are sorted in unsigned order of path bytes and grouped into blocks of about {@link #BLOCK} bytes.
+ * The blocks are loaded when the cache is opened, so a lookup reads a single block with one positional read.
+ * The file is not mapped, since a file with a live mapping cannot be replaced on Windows.
+ * <p>
+ * Entries of files visited during the run are sorted and spilled to temporary files in runs of
+ * {@link #RUN} entries, and merged into a temporary file that atomically replaces the cache, once it is closed,
+ * when the run is over.
+ * <p>
+ * A {@link WalkServer} also keeps entries of all runs in {@link Memory} shared between its jobs,
+ * with or without a cache file.
+ */
+class HashCache {
+    private static final int MAGIC = 0x52574843;
+    private static final int VERSION = 2;
+    static final int BLOCK = 1 << 14;
+    static final int RUN = 1 << 16;
+    private static final int TRAILER = 2 * Long.BYTES + Integer.BYTES;
+    private static final Comparator<byte[]> ORDER = Arrays::compareUnsigned;
+    /**
+     * Files modified this close to the start of the run may change again within the timestamp resolution.
+     */
+    private static final long RACY_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private final Path file;
+    private final String algorithm;
+    private final int length;
+    /**
+     * Previous cache file, or {@code null} if there is none.
+     */
+    private final FileChannel channel;
+    /**
+     * Offsets of the blocks, followed by the end of the last one.
+     */
+    private final long[] offsets;
+    /**
+     * First paths of the blocks.
+     */
+    private final byte[][] firsts;
+    private final long horizon;
+    private final Memory memory;
+    private List<Entry> visited = new ArrayList<>();
+    private final List<Path> runs = new ArrayList<>();
+
+    private HashCache(Path file, String algorithm, int length, FileChannel channel, long[] offsets, byte[][] firsts,
+                      Memory memory) {
+        this.file = file;
+        this.algorithm = algorithm;
+        this.length = length;
+        this.channel = channel;
+        this.offsets = offsets;
+        this.firsts = firsts;
+        this.horizon = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - RACY_NANOS;
+        this.memory = memory;
+    }
+
+    private static class Entry {
+        private final byte[] path;
+        private final byte[] key;
+        private final long size;
+        private final long modified;
+        private final byte[] digest;
+
+        Entry(byte[] path, byte[] key, long size, long modified, byte[] digest) {
+            this.path = path;
+            this.key = key;
+            this.size = size;
+            this.modified = modified;
+            this.digest = digest;
+        }
+
+        boolean matches(byte[] fileKey, BasicFileAttributes attrs) {
+            return Arrays.equals(key, fileKey) && size == attrs.size() && modified == modified(attrs);
+        }
+
+        long length() {
+            return 2 * Integer.BYTES + path.length + key.length + 2 * Long.BYTES + digest.length;
+        }
+
+        void write(Output out) throws IOException {
+            out.writeBytes(path);
+            out.writeBytes(key);
+            out.writeLong(size);
+            out.writeLong(modified);
+            out.write(digest);
+        }
+    }
+
+    /**
+     * Entries of files visited by runs of the same algorithm, kept in memory between them.
+     * Least recently used entries are evicted beyond the capacity.
+     */
+    static class Memory {
+        private final Map<String, Entry> entries;
+
+        Memory(int capacity) {
+            entries = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > capacity;
+                }
+            });
+        }
+    }
+
+    /**
+     * Opens cache file, starting with an empty cache if the file does not exist,
+     * was written for another algorithm or is damaged.
+     *
+     * @throws IOException if the file exists, but cannot be read
+     */
+    static HashCache open(Path file, String algorithm, int length) throws IOException {
+        return open(file, algorithm, length, null);
+    }
+
+    /**
+     * Opens cache file backed by entries in memory, which are consulted first.
+     *
+     * @param memory entries of previous runs of the algorithm, or {@code null}
+     */
+    static HashCache open(Path file, String algorithm, int length, Memory memory) throws IOException {
+        if (!Files.exists(file)) {
+            return empty(file, algorithm, length, memory);
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            ByteBuffer trailer = size < TRAILER ? null : read(channel, size - TRAILER, TRAILER);
+            if (trailer == null || trailer.getInt(TRAILER - Integer.BYTES) != MAGIC) {
+                throw new DamagedException();
+            }
+            DataInputStream header = new DataInputStream(Channels.newInputStream(channel.position(0)));
+            if (header.readInt() != MAGIC || header.readInt() != VERSION || header.readInt() != length
+                    || !Arrays.equals(readBytes(header, size), algorithm.getBytes(StandardCharsets.UTF_8))) {
+                channel.close();
+                return empty(file, algorithm, length, memory);
+            }
+            long records = channel.position();
+            long blocks = trailer.getLong();
+            long count = trailer.getLong();
+            if (blocks < records || blocks > size - TRAILER || count < 0 || count > size - TRAILER - blocks
+                    || count >= Integer.MAX_VALUE) {
+                throw new DamagedException();
+            }
+            long[] offsets = new long[(int) count + 1];
+            byte[][] firsts = new byte[(int) count][];
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel.position(blocks)), 1 << 16));
+            for (int i = 0; i < count; i++) {
+                offsets[i] = in.readLong();
+                firsts[i] = readBytes(in, size);
+                if (i == 0 ? offsets[i] != records : offsets[i] <= offsets[i - 1]
+                        || offsets[i] - offsets[i - 1] > Integer.MAX_VALUE
+                        || ORDER.compare(firsts[i - 1], firsts[i]) >= 0) {
+                    throw new DamagedException();
+                }
+            }
+            offsets[(int) count] = blocks;
+            if (count > 0 && (offsets[(int) count - 1] >= blocks || blocks - offsets[(int) count - 1] > Integer.MAX_VALUE)) {
+                throw new DamagedException();
+            }
+            return new HashCache(file, algorithm, length, channel, offsets, firsts, memory);
+        } catch (DamagedException | EOFException e) {
+            System.err.println("Ignoring damaged cache file: " + file);
+            channel.close();
+            return empty(file, algorithm, length, memory);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Thrown when the cache file contents are inconsistent.
+     */
+    private static class DamagedException extends IOException {
+        DamagedException() {
+            super("Damaged cache file");
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in, long limit) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > limit) {
+            throw new DamagedException();
+        }
+        return in.readNBytes(length);
+    }
+
+    /**
+     * Reads bytes at the position fully.
+     *
+     * @throws DamagedException if the file ends first
+     */
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new DamagedException();
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Returns cache of entries in memory only, which is not saved.
+     */
+    static HashCache resident(Memory memory, String algorithm, int length) {
+        return empty(null, algorithm, length, memory);
+    }
+
+    private static HashCache empty(Path file, String algorithm, int length, Memory memory) {
+        return new HashCache(file, algorithm, length, null, new long[1], new byte[0][], memory);
+    }
+
+    private static String key(Path path) {
+        return path.toAbsolutePath().toString();
+    }
+
+    private static byte[] fileKey(BasicFileAttributes attrs) {
+        return String.valueOf(attrs.fileKey()).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long modified(BasicFileAttributes attrs) {
+        return attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns cached digest of the file if its key, size and modification time did not change.
+     *
+     * @return the digest or {@code null} if there is no valid cache entry
+     */
+    byte[] get(Path path, BasicFileAttributes attrs) {
+        if (!attrs.isRegularFile() || firsts.length == 0 && memory == null) {
+            return null;
+        }
+        String key = key(path);
+        if (memory != null) {
+            Entry entry = memory.entries.get(key);
+            if (entry != null && entry.matches(fileKey(attrs), attrs)) {
+                visit(entry);
+                return entry.digest;
+            }
+        }
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        int block = block(bytes);
+        if (block < 0) {
+            return null;
+        }
+        try {
+            ByteBuffer records = read(channel, offsets[block], (int) (offsets[block + 1] - offsets[block]));
+            while (records.hasRemaining()) {
+                int from = records.position() + Integer.BYTES;
+                int to = from + records.getInt();
+                int cmp = Arrays.compareUnsigned(records.array(), from, to, bytes, 0, bytes.length);
+                if (cmp > 0) {
+                    return null;
+                }
+                records.position(to);
+                byte[] fileKey = new byte[records.getInt()];
+                records.get(fileKey);
+                long size = records.getLong();
+                long modified = records.getLong();
+                if (cmp == 0) {
+                    Entry entry = new Entry(bytes, fileKey, size, modified, new byte[length]);
+                    records.get(entry.digest);
+                    if (!entry.matches(fileKey(attrs), attrs)) {
+                        return null;
+                    }
+                    remember(key, entry);
+                    return entry.digest;
+                }
+                records.position(records.position() + length);
+            }
+            return null;
+        } catch (IOException | RuntimeException e) {
+            // damaged records are not reused
+            return null;
+        }
+    }
+
+    /**
+     * Returns the last block whose first path is not greater than the path, or {@code -1} if there is none.
+     */
+    private int block(byte[] path) {
+        int lo = 0;
+        int hi = firsts.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ORDER.compare(firsts[mid], path) <= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo - 1;
+    }
+
+    /**
+     * Remembers digest of the file for the next run.
+     */
+    void put(Path path, BasicFileAttributes attrs, byte[] digest) {
+        long modified = modified(attrs);
+        if (attrs.isRegularFile() && modified < horizon) {
+            String key = key(path);
+            remember(key, new Entry(key.getBytes(StandardCharsets.UTF_8), fileKey(attrs), attrs.size(), modified, digest));
+        }
+    }
+
+    private void remember(String key, Entry entry) {
+        visit(entry);
+        if (memory != null) {
+            memory.entries.put(key, entry);
+        }
+    }
+
+    /**
+     * Keeps the entry for the cache file, spilling a full run of entries to a temporary file.
+     * A {@link #resident} cache keeps nothing.
+     */
+    private synchronized void visit(Entry entry) {
+        if (file == null) {
+            return;
+        }
+        visited.add(entry);
+        if (visited.size() == RUN) {
+            try {
+                spill();
+            } catch (IOException e) {
+                // the entries are still written to the cache file from memory
+                System.err.println("Cannot spill cache entries: " + e.getMessage());
+            }
+        }
+    }
+
+    private void spill() throws IOException {
+        visited.sort(Comparator.comparing(entry -> entry.path, ORDER));
+        Path run = Files.createTempFile(directory(), file.getFileName().toString(), ".run");
+        run.toFile().deleteOnExit();
+        try (Output out = new Output(Files.newOutputStream(run))) {
+            for (Entry entry : visited) {
+                entry.write(out);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(run);
+            throw e;
+        }
+        runs.add(run);
+        visited = new ArrayList<>();
+    }
+
+    private Path directory() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        return parent;
+    }
+
+    /**
+     * Sorted run of entries read back from a temporary file.
+     */
+    private class Run {
+        private final DataInputStream in;
+        private final int index;
+        Entry entry;
+
+        Run(DataInputStream in, int index) {
+            this.in = in;
+            this.index = index;
+        }
+
+        boolean next() throws IOException {
+            int pathLength;
+            try {
+                pathLength = in.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            byte[] path = in.readNBytes(pathLength);
+            byte[] key = in.readNBytes(in.readInt());
+            long size = in.readLong();
+            long modified = in.readLong();
+            byte[] digest = in.readNBytes(length);
+            entry = new Entry(path, key, size, modified, digest);
+            return true;
+        }
+    }
+
+    /**
+     * Replaces the cache file with entries of files visited during this run.
+     * Of several entries with the same path, the one visited last is kept.
+     * A {@link #resident} cache has no file and is not saved.
+     */
+    synchronized void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+        if (channel != null) {
+            channel.close();
+        }
+        Path parent = directory();
+        Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        List<DataInputStream> streams = new ArrayList<>();
+        try {
+            PriorityQueue<Run> queue = new PriorityQueue<>(
+                    Comparator.comparing((Run run) -> run.entry.path, ORDER).thenComparingInt(run -> -run.index));
+            for (Path path : runs) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+                streams.add(in);
+                Run run = new Run(in, streams.size() - 1);
+                if (run.next()) {
+                    queue.add(run);
+                }
+            }
+            visited.sort(Comparator.comparing(entry -> entry.path, ORDER));
+            Iterator<Entry> last = visited.iterator();
+            Run remaining = new Run(null, runs.size()) {
+                @Override
+                boolean next() {
+                    if (!last.hasNext()) {
+                        return false;
+                    }
+                    entry = last.next();
+                    return true;
+                }
+            };
+            if (remaining.next()) {
+                queue.add(remaining);
+            }
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE);
+                 Output out = new Output(Channels.newOutputStream(channel))) {
+                byte[] name = algorithm.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(length);
+                out.writeBytes(name);
+                List<Long> offsets = new ArrayList<>();
+                List<byte[]> firsts = new ArrayList<>();
+                long block = 0;
+                byte[] previous = null;
+                while (!queue.isEmpty()) {
+                    Run run = queue.poll();
+                    Entry entry = run.entry;
+                    if (run.next()) {
+                        queue.add(run);
+                    }
+                    if (previous != null && Arrays.equals(previous, entry.path)) {
+                        // an older entry of the same file
+                        continue;
+                    }
+                    previous = entry.path;
+                    if (firsts.isEmpty() || out.position - block + entry.length() > BLOCK) {
+                        block = out.position;
+                        offsets.add(block);
+                        firsts.add(entry.path);
+                    }
+                    entry.write(out);
+                }
+                long blocks = out.position;
+                for (int i = 0; i < offsets.size(); i++) {
+                    out.writeLong(offsets.get(i));
+                    out.writeBytes(firsts.get(i));
+                }
+                out.writeLong(blocks);
+                out.writeLong(offsets.size());
+                out.writeInt(MAGIC);
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            for (DataInputStream in : streams) {
+                in.close();
+            }
+            for (Path run : runs) {
+                Files.deleteIfExists(run);
+            }
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static class Output extends DataOutputStream {
+        private long position;
+
+        Output(OutputStream out) {
+            super(new BufferedOutputStream(out, 1 << 16));
+            this.out = new FilterOutputStream(this.out) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    position++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    position += len;
+                }
+            };
+        }
+
+        void writeBytes(byte[] bytes) throws IOException {
+            writeInt(bytes.length);
+            write(bytes);
+        }
+    }
+}
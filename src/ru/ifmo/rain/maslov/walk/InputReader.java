@@ -0,0 +1,199 @@
+package ru.ifmo.rain.maslov.walk;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+
+/**
+ * Reads input lines of {@link RecursiveWalk} from a file or standard input.
+ * <p>
+ * A separate thread decodes UTF-8 input from a direct buffer of {@link #BUFFER} bytes and hands lines
+ * over in batches of at most {@link #BATCH} lines of each read through a queue of at most {@link #BATCHES}
+ * batches, so memory use does not depend on the input length and decoding overlaps with the walk. Lines end with {@code \n}, {@code \r}
+ * or {@code \r\n}, as for {@link java.io.BufferedReader#readLine()}.
+ */
+class InputReader implements Closeable {
+    static final int BUFFER = 1 << 20;
+    static final int BATCH = 1024;
+    static final int BATCHES = 64;
+    private static final List<String> END = Collections.emptyList();
+
+    private final ReadableByteChannel channel;
+    private final BlockingQueue<List<String>> batches = new ArrayBlockingQueue<>(BATCHES);
+    private final Deque<List<String>> ahead = new ArrayDeque<>();
+    private final Future<?> thread;
+    private volatile IOException failure;
+    private List<String> batch = new ArrayList<>();
+    private int next;
+    private boolean ended;
+
+    private InputReader(ReadableByteChannel channel, WalkThreads threads) {
+        this.channel = channel;
+        this.thread = threads.start(this::decode, "walk-input");
+    }
+
+    /**
+     * Opens the file, or standard input for {@code -}.
+     */
+    static InputReader open(String name, Path file) throws IOException {
+        return open(name, file, WalkThreads.DEDICATED);
+    }
+
+    /**
+     * Opens the file, or standard input for {@code -}, decoding it on the given threads.
+     */
+    static InputReader open(String name, Path file, WalkThreads threads) throws IOException {
+        return new InputReader(name.equals("-")
+                ? new FileInputStream(FileDescriptor.in).getChannel()
+                : Files.newByteChannel(file), threads);
+    }
+
+    private void decode() {
+        try {
+            CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+            ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER);
+            CharBuffer chars = CharBuffer.allocate(BUFFER);
+            char[] array = chars.array();
+            StringBuilder partial = new StringBuilder();
+            List<String> lines = new ArrayList<>(BATCH);
+            boolean skipLF = false;
+            boolean eof = false;
+            boolean done = false;
+            while (!done) {
+                if (!eof && channel.read(bytes) < 0) {
+                    eof = true;
+                }
+                bytes.flip();
+                CoderResult result = decoder.decode(bytes, chars, eof);
+                bytes.compact();
+                if (result.isError()) {
+                    result.throwException();
+                }
+                done = eof && result.isUnderflow();
+                if (done) {
+                    decoder.flush(chars);
+                }
+                int start = 0;
+                for (int i = 0; i < chars.position(); i++) {
+                    char c = array[i];
+                    if (skipLF) {
+                        skipLF = false;
+                        if (c == '\n') {
+                            start = i + 1;
+                            continue;
+                        }
+                    }
+                    if (c == '\n' || c == '\r') {
+                        if (partial.length() == 0) {
+                            lines.add(new String(array, start, i - start));
+                        } else {
+                            lines.add(partial.append(array, start, i - start).toString());
+                            partial.setLength(0);
+                        }
+                        start = i + 1;
+                        skipLF = c == '\r';
+                        if (lines.size() == BATCH) {
+                            batches.put(lines);
+                            lines = new ArrayList<>(BATCH);
+                        }
+                    }
+                }
+                partial.append(array, start, chars.position() - start);
+                chars.clear();
+                if (!lines.isEmpty()) {
+                    // lines of a pipe are handed over as soon as they are read
+                    batches.put(lines);
+                    lines = new ArrayList<>(BATCH);
+                }
+            }
+            if (partial.length() > 0) {
+                lines.add(partial.toString());
+            }
+            if (!lines.isEmpty()) {
+                batches.put(lines);
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            return;
+        }
+        try {
+            batches.put(END);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private List<String> take() throws IOException {
+        try {
+            List<String> taken = batches.take();
+            if (taken == END) {
+                ended = true;
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+            return taken;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading input");
+        }
+    }
+
+    /**
+     * Returns all lines if there are at most {@code limit} of them, or {@code null} otherwise.
+     * The lines are returned by {@link #next()} all the same.
+     */
+    List<String> readAll(int limit) throws IOException {
+        List<String> lines = new ArrayList<>(batch.subList(next, batch.size()));
+        for (List<String> read : ahead) {
+            lines.addAll(read);
+        }
+        while (!ended && lines.size() <= limit) {
+            List<String> read = take();
+            ahead.add(read);
+            lines.addAll(read);
+        }
+        return lines.size() <= limit ? lines : null;
+    }
+
+    /**
+     * Returns the next line or {@code null} at the end of input.
+     */
+    String next() throws IOException {
+        while (next == batch.size()) {
+            if (!ahead.isEmpty()) {
+                batch = ahead.removeFirst();
+            } else if (ended) {
+                return null;
+            } else {
+                batch = take();
+            }
+            next = 0;
+        }
+        return batch.get(next++);
+    }
+
+    @Override
+    public void close() throws IOException {
+        thread.cancel(true);
+        channel.close();
+    }
+}
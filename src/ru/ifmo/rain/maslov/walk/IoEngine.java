@@ -0,0 +1,301 @@
+package ru.ifmo.rain.maslov.walk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Reads file contents for hashing.
+ * <p>
+ * Files of at least {@code mapThreshold} bytes are memory-mapped in windows of up to {@link #MAP_WINDOW} bytes,
+ * smaller files are read through pooled direct buffers.
+ * The pool holds at most one buffer per concurrent reader, so buffers are reused even when
+ * every file is read by a new thread. Reads are admitted and paced by {@link IoScheduler}.
+ * Files of other file systems, such as archive entries, are read as streams through the pooled buffers,
+ * since channels of the zip file system hold whole decompressed entries in memory.
+ * Tree hashes of large files are read by several pool workers at once.
+ */
+class IoEngine {
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    static final long DEFAULT_MAP_THRESHOLD = 16 * 1024 * 1024;
+    /**
+     * Size of a single sample of {@link #sample}.
+     */
+    static final int SAMPLE = 4096;
+    /**
+     * Number of chunks of a {@link #tree tree hash} read at once per pool worker.
+     */
+    static final int TREE_BATCH = 4;
+    private static final long MAP_WINDOW = 1 << 30;
+
+    private final int bufferSize;
+    private final long mapThreshold;
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final WalkMetrics metrics;
+    private final IoScheduler scheduler;
+
+    IoEngine(int bufferSize, long mapThreshold, WalkMetrics metrics, IoScheduler scheduler) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("buffer size is not positive: " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+        this.mapThreshold = mapThreshold;
+        this.metrics = metrics;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Consumer of consecutive parts of file contents.
+     */
+    interface Consumer {
+        /**
+         * Processes bytes between position and limit of the buffer.
+         * The buffer may be reused after the call returns.
+         */
+        void accept(ByteBuffer buffer);
+    }
+
+    void read(Path file, Consumer consumer) throws IOException {
+        IoScheduler.Device device = scheduler.device(file);
+        device.acquire();
+        try {
+            read(file, consumer, device);
+        } finally {
+            device.release();
+        }
+    }
+
+    /**
+     * Reads file size as 8 big-endian bytes, followed by {@link #SAMPLE} bytes at the head, at the tail
+     * and at {@code samples} evenly spaced offsets between them. Files too small to be sampled are read whole.
+     */
+    void sample(Path file, int samples, Consumer consumer) throws IOException {
+        IoScheduler.Device device = scheduler.device(file);
+        device.acquire();
+        WalkMetrics.FileReadEvent event = metrics.beginRead();
+        long start = System.nanoTime();
+        try (ReadableByteChannel channel = open(file)) {
+            long opened = System.nanoTime() - start;
+            long size = size(file, channel);
+            consumer.accept(ByteBuffer.allocate(Long.BYTES).putLong(0, size));
+            ByteBuffer buffer = buffers.poll();
+            if (buffer == null) {
+                buffer = ByteBuffer.allocateDirect(bufferSize);
+            }
+            long total = 0;
+            try {
+                long parts = samples + 1L;
+                if (size <= (parts + 1) * SAMPLE) {
+                    total = read(channel, 0, size, buffer, consumer, device);
+                } else {
+                    long span = size - SAMPLE;
+                    long position = 0;
+                    for (long i = 0; i <= parts; i++) {
+                        long offset = span / parts * i + span % parts * i / parts;
+                        if (!(channel instanceof FileChannel)) {
+                            skip(channel, offset - position, buffer, device);
+                        }
+                        long read = read(channel, offset, SAMPLE, buffer, consumer, device);
+                        total += read;
+                        position = offset + read;
+                    }
+                }
+            } finally {
+                buffers.offer(buffer);
+            }
+            metrics.endRead(event, file, opened, total);
+        } finally {
+            device.release();
+        }
+    }
+
+    /**
+     * Reads file size as 8 big-endian bytes, followed by digests of its consecutive {@code chunk} byte chunks.
+     * <p>
+     * Chunks are read by positional reads and hashed in parallel on the current {@link ForkJoinPool},
+     * or on the common pool outside of one, at most {@link #TREE_BATCH} chunks per worker at once.
+     * Files of other file systems are hashed chunk by chunk sequentially.
+     */
+    void tree(Path file, long chunk, FileHasher hasher, Consumer consumer) throws IOException {
+        IoScheduler.Device device = scheduler.device(file);
+        device.acquire();
+        WalkMetrics.FileReadEvent event = metrics.beginRead();
+        long start = System.nanoTime();
+        try (ReadableByteChannel channel = open(file)) {
+            long opened = System.nanoTime() - start;
+            long size = size(file, channel);
+            consumer.accept(ByteBuffer.allocate(Long.BYTES).putLong(0, size));
+            ForkJoinPool pool = ForkJoinTask.inForkJoinPool() ? ForkJoinTask.getPool() : ForkJoinPool.commonPool();
+            long batch = channel instanceof FileChannel ? TREE_BATCH * pool.getParallelism() : 1;
+            long count = Math.max(1, (size + chunk - 1) / chunk);
+            long total = 0;
+            List<Chunk> chunks = new ArrayList<>();
+            for (long first = 0; first < count; first += batch) {
+                chunks.clear();
+                for (long i = first; i < Math.min(count, first + batch); i++) {
+                    chunks.add(new Chunk(channel, i * chunk, chunk, hasher, device));
+                }
+                if (chunks.size() == 1) {
+                    chunks.get(0).compute();
+                } else {
+                    ForkJoinTask.invokeAll(chunks);
+                }
+                for (Chunk part : chunks) {
+                    if (part.failure != null) {
+                        throw part.failure;
+                    }
+                    total += part.total;
+                    consumer.accept(ByteBuffer.wrap(part.digest));
+                }
+            }
+            metrics.endRead(event, file, opened, total);
+        } finally {
+            device.release();
+        }
+    }
+
+    private class Chunk extends RecursiveAction {
+        private final ReadableByteChannel channel;
+        private final long position;
+        private final long length;
+        private final FileHasher hasher;
+        private final IoScheduler.Device device;
+        private byte[] digest;
+        private long total;
+        private IOException failure;
+
+        Chunk(ReadableByteChannel channel, long position, long length, FileHasher hasher, IoScheduler.Device device) {
+            this.channel = channel;
+            this.position = position;
+            this.length = length;
+            this.hasher = hasher;
+            this.device = device;
+        }
+
+        @Override
+        protected void compute() {
+            ByteBuffer buffer = buffers.poll();
+            if (buffer == null) {
+                buffer = ByteBuffer.allocateDirect(bufferSize);
+            }
+            try {
+                FileHasher.Digest part = hasher.newDigest();
+                total = read(channel, position, length, buffer, part::update, device);
+                digest = part.finish();
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                buffers.offer(buffer);
+            }
+        }
+    }
+
+    /**
+     * Opens the file for reading. Files of other file systems are opened as streams.
+     */
+    private static ReadableByteChannel open(Path file) throws IOException {
+        return file.getFileSystem() == FileSystems.getDefault()
+                ? FileChannel.open(file)
+                : Channels.newChannel(Files.newInputStream(file));
+    }
+
+    private static long size(Path file, ReadableByteChannel channel) throws IOException {
+        return channel instanceof FileChannel ? ((FileChannel) channel).size() : Files.size(file);
+    }
+
+    /**
+     * Skips bytes of a channel that cannot seek by reading them, stopping early at the end of file.
+     */
+    private static void skip(ReadableByteChannel channel, long bytes, ByteBuffer buffer,
+                             IoScheduler.Device device) throws IOException {
+        while (bytes > 0) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), bytes));
+            int read = channel.read(buffer);
+            if (read < 0) {
+                return;
+            }
+            bytes -= read;
+            device.consume(read);
+        }
+    }
+
+    /**
+     * Reads up to {@code length} bytes starting at the given position, stopping early at the end of file.
+     * Channels that are not {@link FileChannel file channels} are read from their current position.
+     *
+     * @return number of bytes read
+     */
+    private static long read(ReadableByteChannel channel, long position, long length, ByteBuffer buffer,
+                             Consumer consumer, IoScheduler.Device device) throws IOException {
+        boolean positional = channel instanceof FileChannel;
+        long total = 0;
+        while (total < length) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), length - total));
+            int read = positional ? ((FileChannel) channel).read(buffer, position + total) : channel.read(buffer);
+            if (read < 0) {
+                break;
+            }
+            buffer.flip();
+            total += read;
+            device.consume(read);
+            consumer.accept(buffer);
+        }
+        return total;
+    }
+
+    private void read(Path file, Consumer consumer, IoScheduler.Device device) throws IOException {
+        WalkMetrics.FileReadEvent event = metrics.beginRead();
+        long start = System.nanoTime();
+        try (ReadableByteChannel channel = open(file)) {
+            long opened = System.nanoTime() - start;
+            if (channel instanceof FileChannel && mapThreshold > 0 && ((FileChannel) channel).size() >= mapThreshold) {
+                long size = ((FileChannel) channel).size();
+                for (long position = 0; position < size; position += MAP_WINDOW) {
+                    ByteBuffer window = ((FileChannel) channel).map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(MAP_WINDOW, size - position));
+                    if (scheduler.limitsRate()) {
+                        for (int from = 0; from < window.capacity(); from += IoScheduler.CHUNK) {
+                            int to = Math.min(window.capacity(), from + IoScheduler.CHUNK);
+                            device.consume(to - from);
+                            consumer.accept(window.limit(to).position(from));
+                        }
+                    } else {
+                        consumer.accept(window);
+                    }
+                }
+                metrics.endRead(event, file, opened, size);
+                return;
+            }
+            long total = 0;
+            ByteBuffer buffer = buffers.poll();
+            if (buffer == null) {
+                buffer = ByteBuffer.allocateDirect(bufferSize);
+            }
+            try {
+                buffer.clear();
+                while (channel.read(buffer) >= 0) {
+                    buffer.flip();
+                    total += buffer.remaining();
+                    device.consume(buffer.remaining());
+                    consumer.accept(buffer);
+                    buffer.clear();
+                }
+            } finally {
+                buffers.offer(buffer);
+            }
+            metrics.endRead(event, file, opened, total);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package ru.ifmo.rain.maslov.walk;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits file reads per device, that is per {@link FileStore}.
+ * <p>
+ * Each device admits at most {@code reads} files read at once and at most {@code rate} bytes per second,
+ * enforced by a token bucket holding up to {@link #BURST_NANOS} worth of bytes. Devices of the last
+ * {@link #DIRECTORIES} directories are remembered, so that a device is looked up about once per directory.
+ * A device is identified by the {@code unix:dev} attribute of the directory, a single {@code stat},
+ * or where there is none, by the root of the directory; file stores are not looked up,
+ * since that rereads the mount table. Zero limits are disabled;
+ * without limits no lookup is made at all.
+ * Files of other file systems than the default one, such as archive entries, share a single device.
+ */
+class IoScheduler {
+    static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    /**
+     * Largest part of a mapped file read between two rate checks.
+     */
+    static final int CHUNK = 1 << 20;
+    static final int DIRECTORIES = 1 << 10;
+
+    private final int reads;
+    private final long rate;
+    private final double burst;
+    private final Device unlimited = new Device();
+    /**
+     * Device of files whose file store cannot be determined or is not a default one.
+     */
+    private final Device unknown = new Device();
+    private final Map<Path, Device> byDirectory = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Path, Device> eldest) {
+                    return size() > DIRECTORIES;
+                }
+            });
+    /**
+     * Devices by {@code unix:dev} number or by root.
+     */
+    private final Map<Object, Device> byId = new ConcurrentHashMap<>();
+    private final boolean unix = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+
+    IoScheduler(int reads, long rate) {
+        if (reads < 0 || rate < 0) {
+            throw new IllegalArgumentException("negative limit");
+        }
+        this.reads = reads;
+        this.rate = rate;
+        this.burst = rate * (double) BURST_NANOS / TimeUnit.SECONDS.toNanos(1);
+    }
+
+    boolean limitsRate() {
+        return rate > 0;
+    }
+
+    /**
+     * Returns device holding the file.
+     */
+    Device device(Path file) {
+        if (reads == 0 && rate == 0) {
+            return unlimited;
+        }
+        if (file.getFileSystem() != FileSystems.getDefault()) {
+            return unknown;
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        Path dir = parent == null ? file.toAbsolutePath() : parent;
+        Device device = byDirectory.get(dir);
+        if (device == null) {
+            // looked up outside of the lock, a concurrent lookup of the same directory finds the same device
+            try {
+                Object id = unix ? Files.getAttribute(dir, "unix:dev") : dir.getRoot();
+                device = byId.computeIfAbsent(id, key -> new Device());
+            } catch (IOException | UnsupportedOperationException e) {
+                device = unknown;
+            }
+            byDirectory.put(dir, device);
+        }
+        return device;
+    }
+
+    /**
+     * Read limits of a single device.
+     */
+    class Device {
+        private final Semaphore permits = reads > 0 ? new Semaphore(reads, true) : null;
+        private double tokens = burst;
+        private long refilled = System.nanoTime();
+
+        /**
+         * Waits until another file can be read from the device.
+         */
+        void acquire() throws InterruptedIOException {
+            if (permits != null) {
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for device");
+                }
+            }
+        }
+
+        void release() {
+            if (permits != null) {
+                permits.release();
+            }
+        }
+
+        /**
+         * Accounts bytes read from the device, waiting until they fit in the rate.
+         */
+        void consume(long bytes) throws InterruptedIOException {
+            if (rate == 0) {
+                return;
+            }
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                tokens = Math.min(burst, tokens + (now - refilled) * (double) rate / TimeUnit.SECONDS.toNanos(1));
+                refilled = now;
+                tokens -= bytes;
+                wait = tokens >= 0 ? 0 : (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate);
+            }
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for read rate");
+                }
+            }
+        }
+    }
+}
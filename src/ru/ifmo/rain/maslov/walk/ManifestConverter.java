@@ -0,0 +1,140 @@
+package ru.ifmo.rain.maslov.walk;
+
+import ru.ifmo.rain.maslov.walk.RecursiveWalk.RecursiveWalkException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Converts manifests between the text and the binary format.
+ * <p>
+ * Usage: {@code ManifestConverter [--hash NAME] <input> <output>}. Binary input is detected by
+ * its magic number and written as text; text input is written as binary. Text manifests do not
+ * record the hash algorithm, so it is taken from {@code --hash} and defaults to {@link FileHashers#DEFAULT}.
+ * Fingerprints and tree hashes keep their {@link Digester#FINGERPRINT_TAG tags} in both formats, though
+ * the number of samples or the chunk size is not known for text input.
+ */
+public class ManifestConverter {
+    private static final String USAGE = "Usage: ManifestConverter [--hash NAME] <input> <output>";
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    public static void main(String[] argv) {
+        try {
+            if (argv == null || argv.length != 2 && argv.length != 4) {
+                throw new RecursiveWalkException(USAGE);
+            }
+            for (String arg : argv) {
+                if (arg == null) {
+                    throw new RecursiveWalkException("Incorrect argument: argument is null");
+                }
+            }
+            FileHasher hasher = FileHashers.forName(FileHashers.DEFAULT);
+            if (argv.length == 4) {
+                if (!argv[0].equals("--hash")) {
+                    throw new RecursiveWalkException("Incorrect argument: unknown option " + argv[0] + "\n" + USAGE);
+                }
+                hasher = FileHashers.forName(argv[1]);
+                if (hasher == null) {
+                    throw new RecursiveWalkException("Incorrect argument: unknown hash algorithm " + argv[1]
+                            + ", expected one of " + FileHashers.names());
+                }
+            }
+            Path input = Path.of(argv[argv.length - 2]);
+            Path output = Path.of(argv[argv.length - 1]);
+            try {
+                if (BinaryManifest.isBinary(input)) {
+                    toText(input, output);
+                } else {
+                    toBinary(input, output, hasher);
+                }
+            } catch (IOException e) {
+                throw new RecursiveWalkException("Cannot convert " + input + ": ", e);
+            }
+        } catch (RecursiveWalkException e) {
+            e.print();
+        } catch (InvalidPathException e) {
+            System.err.println("Invalid path: " + e.getMessage());
+        }
+    }
+
+    private static FileChannel create(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+    }
+
+    static void toText(Path input, Path output) throws IOException {
+        BinaryManifest manifest = BinaryManifest.open(input);
+        String tag = Digester.tag(manifest.hashName());
+        try (ManifestWriter out = new AsyncManifestWriter(create(output), tag)) {
+            BinaryManifest.Cursor cursor = manifest.cursor(0);
+            while (cursor.next()) {
+                out.write(cursor.hash(), cursor.path());
+            }
+        }
+    }
+
+    static void toBinary(Path input, Path output, FileHasher hasher) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(input)) {
+            String line = in.readLine();
+            String tag = "";
+            for (String known : new String[]{Digester.FINGERPRINT_TAG, Digester.TREE_TAG}) {
+                if (line != null && line.startsWith(known)) {
+                    tag = known;
+                }
+            }
+            try (ManifestWriter out = new BinaryManifestWriter(create(output), tag + hasher.name(), hasher.length())) {
+                byte[] hash = new byte[hasher.length()];
+                int width = tag.length() + 2 * hash.length;
+                for (long number = 1; line != null; line = in.readLine(), number++) {
+                    if (line.length() <= width || line.charAt(width) != ' ' || !line.startsWith(tag)
+                            || !parseHex(line, tag.length(), hash)) {
+                        throw new IOException("Line " + number + " is not a " + tag + hasher.name() + " manifest line");
+                    }
+                    out.write(hash, line.substring(width + 1));
+                }
+            }
+        }
+    }
+
+    /**
+     * Puts lowercase hex of the hash to the buffer.
+     */
+    static void putHex(ByteBuffer buffer, byte[] hash) {
+        for (byte b : hash) {
+            buffer.put(HEX[(b >> 4) & 0xf]).put(HEX[b & 0xf]);
+        }
+    }
+
+    /**
+     * Returns lowercase hex of the hash as ASCII bytes.
+     */
+    static byte[] hex(byte[] hash) {
+        byte[] result = new byte[hash.length * 2];
+        putHex(ByteBuffer.wrap(result), hash);
+        return result;
+    }
+
+    /**
+     * Parses {@code hash.length} bytes of lowercase or uppercase hex starting at the given index.
+     *
+     * @return {@code false} if the line has other characters there
+     */
+    static boolean parseHex(String line, int from, byte[] hash) {
+        for (int i = 0; i < hash.length; i++) {
+            int high = Character.digit(line.charAt(from + 2 * i), 16);
+            int low = Character.digit(line.charAt(from + 2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return false;
+            }
+            hash[i] = (byte) (high << 4 | low);
+        }
+        return true;
+    }
+}
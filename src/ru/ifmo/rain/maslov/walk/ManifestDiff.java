@@ -0,0 +1,493 @@
+package ru.ifmo.rain.maslov.walk;
+
+import ru.ifmo.rain.maslov.walk.RecursiveWalk.RecursiveWalkException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Compares two manifests in bounded memory.
+ * <p>
+ * Usage: {@code ManifestDiff [--memory RECORDS] [--temp DIR] <old manifest> <new manifest> [<output>]}.
+ * Manifests may be text or binary. Each one is checked to be sorted in unsigned order of UTF-8 paths,
+ * and otherwise sorted externally: runs of at most {@code RECORDS} records are sorted in memory,
+ * spilled to temporary files and merged. The sorted manifests are then merged, writing one line per
+ * difference to the output, or to standard output:
+ * <pre>
+ * A &lt;new hash&gt; &lt;path&gt;             added
+ * R &lt;old hash&gt; &lt;path&gt;             removed
+ * C &lt;old hash&gt; &lt;new hash&gt; &lt;path&gt;  changed
+ * </pre>
+ * Subtrees whose {@link MerkleDirectory Merkle hashes} are equal in both manifests are skipped
+ * without comparison, and sorted binary manifests skip them without reading. Directory records are
+ * recognized by a trailing separator of the default file system, so manifests are to be compared
+ * on the platform that wrote them. Of several records
+ * with the same path only the first one is compared.
+ */
+public class ManifestDiff {
+    private static final String USAGE = "Usage: ManifestDiff [--memory RECORDS] [--temp DIR] <old> <new> [<output>]";
+    static final int DEFAULT_MEMORY = 1 << 20;
+    private static final Comparator<byte[]> ORDER = Arrays::compareUnsigned;
+
+    private final int memory;
+    private final Path temp;
+    private long added;
+    private long removed;
+    private long changed;
+
+    ManifestDiff(int memory, Path temp) {
+        this.memory = memory;
+        this.temp = temp;
+    }
+
+    /**
+     * Records of a manifest.
+     */
+    private interface Source extends Closeable {
+        /**
+         * Moves to the next record.
+         *
+         * @return {@code false} if there are no more records
+         */
+        boolean next() throws IOException;
+
+        /**
+         * Returns UTF-8 path of the current record. The array is not modified afterwards.
+         */
+        byte[] path();
+
+        /**
+         * Returns the current hash as written in text manifests.
+         */
+        String hash();
+
+        /**
+         * Moves to the first record, starting from the current one, whose path does not start with the prefix.
+         *
+         * @return {@code false} if there are no more records
+         */
+        default boolean skip(byte[] prefix) throws IOException {
+            while (startsWith(path(), prefix)) {
+                if (!next()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        default void close() throws IOException {
+        }
+    }
+
+    private static boolean startsWith(byte[] path, byte[] prefix) {
+        return path.length >= prefix.length && Arrays.equals(path, 0, prefix.length, prefix, 0, prefix.length);
+    }
+
+    private static class TextSource implements Source {
+        private final BufferedReader reader;
+        private long line;
+        private byte[] path;
+        private String hash;
+
+        TextSource(Path file) throws IOException {
+            this.reader = Files.newBufferedReader(file);
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            String text = reader.readLine();
+            if (text == null) {
+                return false;
+            }
+            line++;
+            int space = text.indexOf(' ');
+            if (space < 0) {
+                throw new IOException("Line " + line + " is not a manifest line");
+            }
+            hash = text.substring(0, space);
+            path = text.substring(space + 1).getBytes(StandardCharsets.UTF_8);
+            return true;
+        }
+
+        @Override
+        public byte[] path() {
+            return path;
+        }
+
+        @Override
+        public String hash() {
+            return hash;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    private static class BinarySource implements Source {
+        private final BinaryManifest manifest;
+        private final String tag;
+        private final boolean sorted;
+        private BinaryManifest.Cursor cursor;
+        private byte[] path;
+
+        BinarySource(BinaryManifest manifest, boolean sorted) {
+            this.manifest = manifest;
+            this.tag = Digester.tag(manifest.hashName());
+            this.sorted = sorted;
+            this.cursor = manifest.cursor(0);
+        }
+
+        @Override
+        public boolean next() {
+            if (!cursor.next()) {
+                return false;
+            }
+            path = Arrays.copyOf(cursor.pathBytes(), cursor.pathLength());
+            return true;
+        }
+
+        @Override
+        public byte[] path() {
+            return path;
+        }
+
+        @Override
+        public String hash() {
+            return tag + new String(ManifestConverter.hex(cursor.hash()), StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * Jumps over the subtree with the index if the manifest is sorted.
+         */
+        @Override
+        public boolean skip(byte[] prefix) throws IOException {
+            if (!sorted || prefix.length == 0 || prefix[prefix.length - 1] == (byte) 0x7f) {
+                return Source.super.skip(prefix);
+            }
+            byte[] end = prefix.clone();
+            end[end.length - 1]++;
+            cursor = manifest.cursor(manifest.lowerBound(new String(end, StandardCharsets.UTF_8)));
+            return next();
+        }
+    }
+
+    private static class Record {
+        private final byte[] path;
+        private final String hash;
+
+        Record(byte[] path, String hash) {
+            this.path = path;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Records sorted in memory.
+     */
+    private static class ListSource implements Source {
+        private final List<Record> records;
+        private int index = -1;
+
+        ListSource(List<Record> records) {
+            this.records = records;
+        }
+
+        @Override
+        public boolean next() {
+            return ++index < records.size();
+        }
+
+        @Override
+        public byte[] path() {
+            return records.get(index).path;
+        }
+
+        @Override
+        public String hash() {
+            return records.get(index).hash;
+        }
+    }
+
+    /**
+     * Sorted run spilled to a temporary file, deleted on close.
+     */
+    private static class RunSource implements Source {
+        private final Path file;
+        private final DataInputStream in;
+        private final int run;
+        private byte[] path;
+        private String hash;
+
+        RunSource(Path file, int run) throws IOException {
+            this.file = file;
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+            this.run = run;
+        }
+
+        static void write(Path file, List<Record> records) throws IOException {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+                for (Record record : records) {
+                    out.writeInt(record.path.length);
+                    out.write(record.path);
+                    out.writeUTF(record.hash);
+                }
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            path = in.readNBytes(length);
+            hash = in.readUTF();
+            return true;
+        }
+
+        @Override
+        public byte[] path() {
+            return path;
+        }
+
+        @Override
+        public String hash() {
+            return hash;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                in.close();
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Merges sorted runs, taking records with equal paths in order of runs.
+     */
+    private static class MergeSource implements Source {
+        private final List<RunSource> runs;
+        private final PriorityQueue<RunSource> queue = new PriorityQueue<>(
+                Comparator.comparing(RunSource::path, ORDER).thenComparingInt(run -> run.run));
+        private RunSource current;
+
+        MergeSource(List<RunSource> runs) throws IOException {
+            this.runs = runs;
+            for (RunSource run : runs) {
+                if (run.next()) {
+                    queue.add(run);
+                }
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if (current != null && current.next()) {
+                queue.add(current);
+            }
+            current = queue.poll();
+            return current != null;
+        }
+
+        @Override
+        public byte[] path() {
+            return current.path();
+        }
+
+        @Override
+        public String hash() {
+            return current.hash();
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException failure = null;
+            for (RunSource run : runs) {
+                try {
+                    run.close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private static Source open(Path file, boolean sorted) throws IOException {
+        return BinaryManifest.isBinary(file)
+                ? new BinarySource(BinaryManifest.open(file), sorted)
+                : new TextSource(file);
+    }
+
+    private static boolean isSorted(Path file) throws IOException {
+        try (Source source = open(file, false)) {
+            byte[] previous = null;
+            while (source.next()) {
+                if (previous != null && ORDER.compare(previous, source.path()) > 0) {
+                    return false;
+                }
+                previous = source.path();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns records of the manifest in sorted order.
+     */
+    private Source sorted(Path file) throws IOException {
+        if (isSorted(file)) {
+            return open(file, true);
+        }
+        List<RunSource> runs = new ArrayList<>();
+        try (Source source = open(file, false)) {
+            List<Record> records = new ArrayList<>();
+            boolean more = source.next();
+            while (more) {
+                records.add(new Record(source.path(), source.hash()));
+                more = source.next();
+                if (records.size() == memory || !more) {
+                    records.sort(Comparator.comparing(record -> record.path, ORDER));
+                    if (!more && runs.isEmpty()) {
+                        return new ListSource(records);
+                    }
+                    Path run = Files.createTempFile(temp, "manifest-diff", ".run");
+                    runs.add(new RunSource(run, runs.size()));
+                    RunSource.write(run, records);
+                    records.clear();
+                }
+            }
+            return new MergeSource(runs);
+        } catch (IOException | RuntimeException e) {
+            for (RunSource run : runs) {
+                try {
+                    run.close();
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Moves past all records with the current path.
+     */
+    private static boolean advance(Source source) throws IOException {
+        byte[] path = source.path();
+        while (source.next()) {
+            if (!Arrays.equals(path, source.path())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the record is a directory, whose path ends with the separator.
+     * Other separators are not accepted: a trailing {@code '\\'} is a legal part of POSIX file names.
+     */
+    private static boolean isDirectory(byte[] path) {
+        return path.length > 0 && path[path.length - 1] == File.separatorChar;
+    }
+
+    void diff(Path oldFile, Path newFile, Writer out) throws IOException {
+        try (Source old = sorted(oldFile); Source current = sorted(newFile)) {
+            boolean hasOld = old.next();
+            boolean hasNew = current.next();
+            while (hasOld || hasNew) {
+                int cmp = !hasOld ? 1 : !hasNew ? -1 : ORDER.compare(old.path(), current.path());
+                if (cmp < 0) {
+                    removed++;
+                    out.write("R " + old.hash() + " " + path(old) + "\n");
+                    hasOld = advance(old);
+                } else if (cmp > 0) {
+                    added++;
+                    out.write("A " + current.hash() + " " + path(current) + "\n");
+                    hasNew = advance(current);
+                } else if (old.hash().equals(current.hash()) && isDirectory(old.path())) {
+                    byte[] prefix = old.path();
+                    hasOld = old.skip(prefix);
+                    hasNew = current.skip(prefix);
+                } else {
+                    if (!old.hash().equals(current.hash())) {
+                        changed++;
+                        out.write("C " + old.hash() + " " + current.hash() + " " + path(old) + "\n");
+                    }
+                    hasOld = advance(old);
+                    hasNew = advance(current);
+                }
+            }
+        }
+    }
+
+    private static String path(Source source) {
+        return new String(source.path(), StandardCharsets.UTF_8);
+    }
+
+    public static void main(String[] argv) {
+        try {
+            if (argv == null) {
+                throw new RecursiveWalkException(USAGE);
+            }
+            int memory = DEFAULT_MEMORY;
+            Path temp = Path.of(System.getProperty("java.io.tmpdir"));
+            List<Path> files = new ArrayList<>();
+            for (int i = 0; i < argv.length; i++) {
+                if (argv[i] == null) {
+                    throw new RecursiveWalkException("Incorrect argument: argument " + (i + 1) + " is null");
+                }
+                if (argv[i].equals("--memory") && i + 1 < argv.length) {
+                    try {
+                        memory = Integer.parseInt(argv[++i]);
+                    } catch (NumberFormatException e) {
+                        throw new RecursiveWalkException("Incorrect argument: --memory " + argv[i], e);
+                    }
+                    if (memory <= 0) {
+                        throw new RecursiveWalkException("Incorrect argument: --memory must be positive");
+                    }
+                } else if (argv[i].equals("--temp") && i + 1 < argv.length) {
+                    temp = Path.of(argv[++i]);
+                } else if (argv[i].startsWith("--")) {
+                    throw new RecursiveWalkException("Incorrect argument: unknown option " + argv[i] + "\n" + USAGE);
+                } else {
+                    files.add(Path.of(argv[i]));
+                }
+            }
+            if (files.size() != 2 && files.size() != 3) {
+                throw new RecursiveWalkException(USAGE);
+            }
+            ManifestDiff diff = new ManifestDiff(memory, temp);
+            try (Writer out = files.size() == 3
+                    ? Files.newBufferedWriter(files.get(2))
+                    : new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16)) {
+                diff.diff(files.get(0), files.get(1), out);
+            } catch (IOException e) {
+                throw new RecursiveWalkException("Cannot compare " + files.get(0) + " and " + files.get(1) + ": ", e);
+            }
+            System.err.println(diff.added + " added, " + diff.removed + " removed, " + diff.changed + " changed");
+        } catch (RecursiveWalkException e) {
+            e.print();
+        } catch (InvalidPathException e) {
+            System.err.println("Invalid path: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package ru.ifmo.rain.maslov.walk;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes text manifest and keeps it up to date after the walk.
+ * <p>
+ * Every directory visited by {@link #walker()} is registered with a {@link WatchService}, and the offset
+ * of every written line is remembered. {@link #run()} then waits for changes, collects events until
+ * the tree is quiet for {@link #QUIET_MILLIS} and rehashes only changed files. Since digests have
+ * a fixed width, known lines are rewritten in place; deleted files get the zero digest, new files
+ * and directories are appended to the manifest. A watched directory that is deleted or moved away
+ * gets the zero digest for all files below it and is no longer watched.
+ */
+class ManifestWatcher implements ManifestWriter {
+    static final long QUIET_MILLIS = 200;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Path output;
+    private final Digester digester;
+    private final byte[] tag;
+    private final WatchService service;
+    private final Map<WatchKey, Directory> keys = new HashMap<>();
+    private final Set<Path> watched = new HashSet<>();
+    private final Map<String, long[]> offsets = new HashMap<>();
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private FileChannel channel;
+    private long end;
+    private boolean live;
+
+    /**
+     * @param tag ASCII prefix of every hash
+     */
+    ManifestWatcher(Path output, FileChannel channel, Digester digester, String tag) throws IOException {
+        this.output = output;
+        this.channel = channel;
+        this.digester = digester;
+        this.tag = tag.getBytes(StandardCharsets.US_ASCII);
+        this.service = output.getFileSystem().newWatchService();
+    }
+
+    private static class Directory {
+        /**
+         * Directory as written in the manifest paths, may be empty.
+         */
+        private final Path path;
+        /**
+         * Whether all entries of the directory belong to the manifest, or only {@link #roots}.
+         */
+        private final boolean whole;
+        private final Set<Path> roots = new LinkedHashSet<>();
+
+        Directory(Path path, boolean whole) {
+            this.path = path;
+            this.whole = whole;
+        }
+    }
+
+    /**
+     * Returns walker of input roots that registers visited directories.
+     * A root that is not a directory is watched through its parent.
+     */
+    RecursiveWalk.Walker walker() {
+        RecursiveWalk.MyVisitor visitor = new RecursiveWalk.MyVisitor(this, digester) {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                FileVisitResult result = super.preVisitDirectory(dir, attrs);
+                if (result == FileVisitResult.CONTINUE) {
+                    register(dir, true);
+                }
+                return result;
+            }
+        };
+        return start -> {
+            Files.walkFileTree(start, visitor);
+            if (!Files.isDirectory(start, LinkOption.NOFOLLOW_LINKS)) {
+                Directory parent = register(start.getParent() != null ? start.getParent() : Path.of(""), false);
+                if (parent != null) {
+                    parent.roots.add(start);
+                }
+            }
+        };
+    }
+
+    private Directory register(Path dir, boolean whole) {
+        try {
+            WatchKey key = (dir.toString().isEmpty() ? Path.of(".") : dir).register(service,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            Directory known = keys.get(key);
+            if (known == null || whole && !known.whole) {
+                known = new Directory(dir, whole);
+                keys.put(key, known);
+            }
+            if (whole) {
+                watched.add(dir);
+            }
+            return known;
+        } catch (IOException e) {
+            System.err.println("Cannot watch " + dir + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Appends a line while the manifest is written, and afterwards rewrites already written lines of the path.
+     */
+    @Override
+    public void write(byte[] hash, String path) throws IOException {
+        long[] known = offsets.get(path);
+        if (live && known != null) {
+            ByteBuffer digest = ByteBuffer.wrap(ManifestConverter.hex(hash));
+            for (long offset : known) {
+                digest.rewind();
+                while (digest.hasRemaining()) {
+                    channel.write(digest, offset + tag.length + digest.position());
+                }
+            }
+            return;
+        }
+        byte[] line = (new String(tag, StandardCharsets.US_ASCII)
+                + new String(ManifestConverter.hex(hash), StandardCharsets.US_ASCII) + " " + path + "\n")
+                .getBytes(StandardCharsets.UTF_8);
+        offsets.put(path, known == null ? new long[]{end} : append(known, end));
+        if (live) {
+            ByteBuffer appended = ByteBuffer.wrap(line);
+            while (appended.hasRemaining()) {
+                channel.write(appended, end + appended.position());
+            }
+        } else {
+            if (buffer.remaining() < line.length) {
+                flush();
+            }
+            if (line.length > buffer.capacity()) {
+                ByteBuffer large = ByteBuffer.wrap(line);
+                while (large.hasRemaining()) {
+                    channel.write(large);
+                }
+            } else {
+                buffer.put(line);
+            }
+        }
+        end += line.length;
+    }
+
+    private static long[] append(long[] array, long value) {
+        long[] result = Arrays.copyOf(array, array.length + 1);
+        result[array.length] = value;
+        return result;
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Finishes the initial manifest.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!live) {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Keeps the manifest up to date until the thread is interrupted.
+     */
+    void run() throws IOException {
+        live = true;
+        channel = FileChannel.open(output, StandardOpenOption.WRITE);
+        try {
+            while (true) {
+                Set<Path> changed = new LinkedHashSet<>();
+                Set<Path> overflown = new LinkedHashSet<>();
+                collect(service.take(), changed, overflown);
+                WatchKey key;
+                while ((key = service.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    collect(key, changed, overflown);
+                }
+                for (Path dir : overflown) {
+                    walker().walk(dir);
+                }
+                for (Path path : changed) {
+                    update(path);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Watching of " + output + " interrupted");
+        } finally {
+            channel.close();
+            service.close();
+        }
+    }
+
+    private void collect(WatchKey key, Set<Path> changed, Set<Path> overflown) {
+        Directory directory = keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (directory == null) {
+                continue;
+            }
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                if (directory.whole) {
+                    overflown.add(directory.path);
+                } else {
+                    changed.addAll(directory.roots);
+                }
+                continue;
+            }
+            Path child = directory.path.resolve((Path) event.context());
+            if (directory.whole || directory.roots.contains(child)) {
+                changed.add(child);
+            }
+        }
+        if (!key.reset()) {
+            keys.remove(key);
+            if (directory != null) {
+                watched.remove(directory.path);
+            }
+        }
+    }
+
+    /**
+     * Writes the zero digest for all files below the directory and stops watching its subtree.
+     */
+    private void forget(Path dir) throws IOException {
+        for (Iterator<Map.Entry<WatchKey, Directory>> it = keys.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<WatchKey, Directory> entry = it.next();
+            if (entry.getValue().path.startsWith(dir)) {
+                entry.getKey().cancel();
+                it.remove();
+            }
+        }
+        watched.removeIf(path -> path.startsWith(dir));
+        String prefix = dir + dir.getFileSystem().getSeparator();
+        List<String> below = new ArrayList<>();
+        for (String path : offsets.keySet()) {
+            if (path.startsWith(prefix)) {
+                below.add(path);
+            }
+        }
+        for (String path : below) {
+            write(digester.zero(), path);
+        }
+    }
+
+    private void update(Path path) throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            if (offsets.containsKey(path.toString())) {
+                write(digester.zero(), path.toString());
+            } else {
+                // only files have records, so this was a directory, possibly with its key already invalid
+                forget(path);
+            }
+            return;
+        } catch (IOException e) {
+            if (digester.getFilter().accept(path)) {
+                write(digester.failed(path, e), path.toString());
+            }
+            return;
+        }
+        if (attrs.isDirectory()) {
+            if (!watched.contains(path)) {
+                walker().walk(path);
+            }
+        } else if (digester.getFilter().accept(path, attrs)) {
+            write(digester.digest(path, attrs), path.toString());
+        } else if (offsets.containsKey(path.toString())) {
+            // the file no longer passes the filter, as if it was deleted
+            write(digester.zero(), path.toString());
+        }
+    }
+}
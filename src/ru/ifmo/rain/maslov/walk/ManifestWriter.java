@@ -0,0 +1,14 @@
+package ru.ifmo.rain.maslov.walk;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination of walk results, receiving one record per visited file in output order.
+ */
+interface ManifestWriter extends Closeable {
+    /**
+     * Writes record of a single file. The hash array is not retained after the call returns.
+     */
+    void write(byte[] hash, String path) throws IOException;
+}
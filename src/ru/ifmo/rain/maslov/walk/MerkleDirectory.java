@@ -0,0 +1,60 @@
+package ru.ifmo.rain.maslov.walk;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects entries of a directory to compute its Merkle hash.
+ * <p>
+ * The hash is computed with the walk {@link FileHasher} over entries sorted in unsigned order of
+ * their UTF-8 names; every entry contributes its name, a zero byte, {@code 'd'} for directories or
+ * {@code 'f'} for other entries, and its hash. Equal hashes of two directories thus mean equal
+ * subtrees, regardless of the directory listing order.
+ * <p>
+ * Directory records are written after their contents, with a trailing separator after the path.
+ */
+class MerkleDirectory {
+    private final List<Entry> entries = new ArrayList<>();
+
+    private static class Entry {
+        private final byte[] name;
+        private final byte[] hash;
+        private final boolean directory;
+
+        Entry(byte[] name, byte[] hash, boolean directory) {
+            this.name = name;
+            this.hash = hash;
+            this.directory = directory;
+        }
+    }
+
+    void add(Path path, byte[] hash, boolean directory) {
+        Path name = path.getFileName();
+        entries.add(new Entry((name == null ? "" : name.toString()).getBytes(StandardCharsets.UTF_8),
+                hash, directory));
+    }
+
+    byte[] finish(FileHasher hasher) {
+        entries.sort((a, b) -> Arrays.compareUnsigned(a.name, b.name));
+        FileHasher.Digest digest = hasher.newDigest();
+        for (Entry entry : entries) {
+            ByteBuffer buffer = ByteBuffer.allocate(entry.name.length + 2 + entry.hash.length);
+            buffer.put(entry.name).put((byte) 0).put((byte) (entry.directory ? 'd' : 'f')).put(entry.hash).flip();
+            digest.update(buffer);
+        }
+        return digest.finish();
+    }
+
+    /**
+     * Returns path of the directory record.
+     */
+    static String path(Path dir) {
+        String path = dir.toString().isEmpty() ? "." : dir.toString();
+        String separator = dir.getFileSystem().getSeparator();
+        return path.endsWith(separator) ? path : path + separator;
+    }
+}
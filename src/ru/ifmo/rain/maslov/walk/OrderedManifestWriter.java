@@ -0,0 +1,86 @@
+package ru.ifmo.rain.maslov.walk;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Accepts records whose hashes are still being computed and writes them in submission order.
+ * <p>
+ * At most {@code capacity} records are pending at once: submitting more blocks the caller
+ * until the oldest record is complete.
+ */
+class OrderedManifestWriter implements ManifestWriter {
+    private final ManifestWriter writer;
+    private final int capacity;
+    private final Deque<Pending> pending = new ArrayDeque<>();
+
+    OrderedManifestWriter(ManifestWriter writer, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity is not positive: " + capacity);
+        }
+        this.writer = writer;
+        this.capacity = capacity;
+    }
+
+    private static class Pending {
+        private final Future<byte[]> hash;
+        private final String path;
+
+        Pending(Future<byte[]> hash, String path) {
+            this.hash = hash;
+            this.path = path;
+        }
+    }
+
+    /**
+     * Writes record after all previously submitted ones, as soon as its hash is ready.
+     */
+    void submit(Future<byte[]> hash, String path) throws IOException {
+        while (pending.size() >= capacity) {
+            writeFirst();
+        }
+        pending.add(new Pending(hash, path));
+        while (!pending.isEmpty() && pending.peekFirst().hash.isDone()) {
+            writeFirst();
+        }
+    }
+
+    @Override
+    public void write(byte[] hash, String path) throws IOException {
+        submit(CompletableFuture.completedFuture(hash), path);
+    }
+
+    private void writeFirst() throws IOException {
+        Pending first = pending.removeFirst();
+        try {
+            writer.write(first.hash.get(), first.path);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for " + first.path);
+        } catch (ExecutionException e) {
+            throw new IOException("Cannot hash " + first.path, e.getCause());
+        }
+    }
+
+    /**
+     * Writes all pending records.
+     */
+    void flush() throws IOException {
+        while (!pending.isEmpty()) {
+            writeFirst();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package ru.ifmo.rain.maslov.walk;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Walks file trees on a work-stealing pool.
+ * <p>
+ * Directories are listed and files are hashed by pool threads, while the calling thread
+ * writes results in the same order as {@link Files#walkFileTree(Path, FileVisitor)} visits them.
+ * At most about {@link #CAPACITY} entries are started ahead of the writer; entries listed beyond that
+ * are started by the writer as it catches up, so memory use does not grow with the tree.
+ * The pool is either owned by the walker or shared with other walks, and then left running on close.
+ */
+class ParallelWalker implements RecursiveWalk.Walker {
+    static final int CAPACITY = 1 << 16;
+
+    private final ForkJoinPool pool;
+    private final boolean shared;
+    /**
+     * Number of started entries that are not written yet.
+     */
+    private final AtomicInteger ahead = new AtomicInteger();
+    private final ManifestWriter writer;
+    private final Digester digester;
+    private final boolean merkle;
+    private final ArchiveExpander archives;
+
+    /**
+     * @param pool     shared pool, or {@code null} to walk on a new pool of {@code threads} threads
+     * @param merkle   whether to write {@link MerkleDirectory Merkle hashes} of directories
+     * @param archives expander of archive entries or {@code null} to write archives as plain files
+     */
+    ParallelWalker(ForkJoinPool pool, int threads, ManifestWriter writer, Digester digester, boolean merkle,
+                   ArchiveExpander archives) {
+        this.shared = pool != null;
+        this.pool = shared ? pool : new ForkJoinPool(threads);
+        this.writer = writer;
+        this.digester = digester;
+        this.merkle = merkle;
+        this.archives = archives;
+    }
+
+    @Override
+    public void walk(Path start) throws IOException {
+        write(new Entry(start));
+    }
+
+    /**
+     * Writes records of the entry and returns its hash.
+     */
+    private byte[] write(Entry entry) throws IOException {
+        start(entry);
+        entry.join();
+        ahead.decrementAndGet();
+        if (entry.excluded) {
+            return null;
+        }
+        if (entry.children == null) {
+            writer.write(entry.hash, entry.path.toString());
+            if (entry.archive) {
+                archives.expand(entry.path);
+            }
+            return entry.hash;
+        }
+        MerkleDirectory directory = merkle ? new MerkleDirectory() : null;
+        List<Entry> children = entry.children;
+        int next = 0;
+        for (int i = 0; i < children.size(); i++) {
+            // keep the pool busy with deferred entries as the writer frees room
+            for (next = Math.max(next, i); next < children.size() && ahead.get() < CAPACITY; next++) {
+                start(children.get(next));
+            }
+            Entry child = children.get(i);
+            byte[] hash = write(child);
+            if (directory != null && !child.excluded) {
+                directory.add(child.path, hash, child.children != null);
+            }
+            children.set(i, null);
+        }
+        if (entry.failure != null) {
+            throw entry.failure;
+        }
+        if (directory == null) {
+            return null;
+        }
+        byte[] hash = directory.finish(digester.getHasher());
+        writer.write(hash, MerkleDirectory.path(entry.path));
+        return hash;
+    }
+
+    /**
+     * Submits the entry from the writer thread, unless it is started already.
+     */
+    private void start(Entry entry) {
+        if (!entry.started) {
+            entry.started = true;
+            ahead.incrementAndGet();
+            pool.execute(entry);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!shared) {
+            pool.shutdownNow();
+        }
+    }
+
+    private class Entry extends RecursiveAction {
+        private final Path path;
+        private byte[] hash;
+        private List<Entry> children;
+        private IOException failure;
+        private boolean archive;
+        /**
+         * Whether the entry is filtered out and has no records.
+         */
+        private boolean excluded;
+        /**
+         * Whether the entry is submitted to the pool, set before the parent completes or by the writer.
+         */
+        private boolean started;
+
+        Entry(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        protected void compute() {
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                excluded = !digester.getFilter().accept(path);
+                hash = excluded ? null : digester.failed(path, e);
+                return;
+            }
+            if (attrs.isDirectory() ? !digester.getFilter().enter(path) : !digester.getFilter().accept(path, attrs)) {
+                excluded = true;
+                return;
+            }
+            if (!attrs.isDirectory()) {
+                hash = digester.digest(path, attrs);
+                archive = archives != null && ArchiveExpander.isArchive(path, attrs);
+                return;
+            }
+            DirectoryStream<Path> stream;
+            try {
+                stream = Files.newDirectoryStream(path);
+            } catch (IOException e) {
+                hash = digester.failed(path, e);
+                return;
+            }
+            WalkMetrics.DirectoryEvent event = digester.getMetrics().enter();
+            List<Entry> list = new ArrayList<>();
+            try {
+                for (Path child : stream) {
+                    Entry entry = new Entry(child);
+                    list.add(entry);
+                    if (ahead.incrementAndGet() <= CAPACITY) {
+                        entry.started = true;
+                        entry.fork();
+                    } else {
+                        ahead.decrementAndGet();
+                    }
+                }
+            } catch (DirectoryIteratorException e) {
+                failure = e.getCause();
+            }
+            try {
+                stream.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+            digester.getMetrics().exit(event, path);
+            children = list;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package ru.ifmo.rain.maslov.walk;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Walks file trees sequentially, visiting subtrees shared by several input roots only once.
+ * <p>
+ * Before the walk each root is mapped to its physical location: its parent with symbolic links
+ * resolved, and its own name, since the root itself is not followed. A root located inside or at
+ * another root is <em>shared</em>. Records of a shared subtree are remembered when it is first walked,
+ * either as a root or inside an enclosing root, and replayed with the path prefix of the current walk
+ * when it is met again. The output is the same as of walking every root independently.
+ * <p>
+ * Remembered records are dropped after the last planned meeting of their location. A subtree of more than
+ * {@link #CAPTURE_LIMIT} records is not remembered, and is walked again each time it is met.
+ * <p>
+ * Roots with {@code .} or {@code ..} names, and roots whose parent cannot be resolved, are never shared.
+ */
+class PlannedWalker extends SimpleFileVisitor<Path> implements RecursiveWalk.Walker {
+    static final int CAPTURE_LIMIT = 1 << 16;
+
+    private final ManifestWriter writer;
+    private final Digester digester;
+    /**
+     * Physical locations of roots that overlap another root.
+     */
+    private final Map<Path, Path> locations;
+    private final Set<Path> shared;
+    /**
+     * Number of times each shared location is still to be met.
+     */
+    private final Map<Path, Integer> remaining;
+    /**
+     * Shared locations whose subtrees are too large to remember.
+     */
+    private final Set<Path> unbounded = new HashSet<>();
+    private final Map<Path, List<Record>> memo = new HashMap<>();
+    private final Deque<Capture> captures = new ArrayDeque<>();
+    private final Deque<WalkMetrics.DirectoryEvent> directories = new ArrayDeque<>();
+    private Path root;
+    private Path location;
+
+    private PlannedWalker(ManifestWriter writer, Digester digester, Map<Path, Path> locations, Set<Path> shared,
+                          Map<Path, Integer> remaining) {
+        this.writer = writer;
+        this.digester = digester;
+        this.locations = locations;
+        this.shared = shared;
+        this.remaining = remaining;
+    }
+
+    private static class Record {
+        private final Path relative;
+        private final byte[] hash;
+
+        Record(Path relative, byte[] hash) {
+            this.relative = relative;
+            this.hash = hash;
+        }
+    }
+
+    private static class Capture {
+        private final Path dir;
+        private final Path location;
+        private final List<Record> records = new ArrayList<>();
+
+        Capture(Path dir, Path location) {
+            this.dir = dir;
+            this.location = location;
+        }
+    }
+
+    /**
+     * Finds input lines that overlap each other.
+     */
+    static PlannedWalker plan(List<String> lines, ManifestWriter writer, Digester digester) {
+        Map<Path, Path> all = new HashMap<>();
+        Map<Path, Integer> counts = new HashMap<>();
+        for (String line : lines) {
+            Path root;
+            try {
+                root = Paths.get(line);
+            } catch (InvalidPathException e) {
+                continue;
+            }
+            Path location = all.containsKey(root) ? all.get(root) : locate(root);
+            all.put(root, location);
+            if (location != null) {
+                counts.merge(location, 1, Integer::sum);
+            }
+        }
+        Set<Path> shared = new HashSet<>();
+        Map<Path, Integer> remaining = new HashMap<>();
+        for (Map.Entry<Path, Integer> entry : counts.entrySet()) {
+            Path location = entry.getKey();
+            boolean nested = entry.getValue() > 1;
+            for (Path parent = location.getParent(); parent != null && !nested; parent = parent.getParent()) {
+                nested = counts.containsKey(parent);
+            }
+            if (nested) {
+                shared.add(location);
+                int meetings = 0;
+                for (Path parent = location; parent != null; parent = parent.getParent()) {
+                    meetings += counts.getOrDefault(parent, 0);
+                }
+                remaining.put(location, meetings);
+            }
+        }
+        Set<Path> enclosing = new HashSet<>(shared);
+        for (Path location : shared) {
+            for (Path parent = location.getParent(); parent != null && enclosing.add(parent); parent = parent.getParent()) {
+            }
+        }
+        Map<Path, Path> locations = new HashMap<>();
+        for (Map.Entry<Path, Path> entry : all.entrySet()) {
+            if (enclosing.contains(entry.getValue())) {
+                locations.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return new PlannedWalker(writer, digester, locations, shared, remaining);
+    }
+
+    private static Path locate(Path root) {
+        for (Path name : root) {
+            if (name.toString().isEmpty() || name.toString().equals(".") || name.toString().equals("..")) {
+                return null;
+            }
+        }
+        Path absolute = root.toAbsolutePath();
+        Path parent = absolute.getParent();
+        if (parent == null || absolute.getFileName() == null) {
+            return absolute;
+        }
+        try {
+            return parent.toRealPath().resolve(absolute.getFileName());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void walk(Path start) throws IOException {
+        root = start;
+        location = locations.get(start);
+        try {
+            Files.walkFileTree(start, this);
+        } finally {
+            // a walk aborted by an error leaves its directories open
+            captures.clear();
+            directories.clear();
+        }
+    }
+
+    private Path locationOf(Path path) {
+        return location == null ? null : location.resolve(root.relativize(path));
+    }
+
+    private void write(byte[] hash, Path path) throws IOException {
+        writer.write(hash, path.toString());
+        for (Iterator<Capture> it = captures.iterator(); it.hasNext(); ) {
+            Capture capture = it.next();
+            capture.records.add(new Record(capture.dir.relativize(path), hash));
+            if (capture.records.size() > CAPTURE_LIMIT) {
+                unbounded.add(capture.location);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Writes remembered records of the location, if any, and counts the meeting of the location
+     * and of shared locations inside it, which are not met separately when records are replayed.
+     *
+     * @return whether the records were replayed
+     */
+    private boolean replay(Path path, Path location) throws IOException {
+        if (location == null || !shared.contains(location)) {
+            return false;
+        }
+        List<Record> records = memo.get(location);
+        met(location);
+        if (records == null) {
+            return false;
+        }
+        for (Path inner : shared) {
+            if (!inner.equals(location) && inner.startsWith(location)) {
+                met(inner);
+            }
+        }
+        for (Record record : records) {
+            write(record.hash, path.resolve(record.relative));
+        }
+        return true;
+    }
+
+    /**
+     * Counts a meeting of the shared location, dropping its records after the last one.
+     */
+    private void met(Path location) {
+        Integer left = remaining.get(location);
+        if (left == null) {
+            return;
+        }
+        if (left > 1) {
+            remaining.put(location, left - 1);
+        } else {
+            remaining.remove(location);
+            memo.remove(location);
+        }
+    }
+
+    /**
+     * Whether records of the location are to be remembered for its next meeting.
+     */
+    private boolean remembers(Path location) {
+        return location != null && remaining.containsKey(location) && !unbounded.contains(location);
+    }
+
+    private void writeFile(Path path, Path location, byte[] hash) throws IOException {
+        write(hash, path);
+        if (remembers(location)) {
+            memo.put(location, List.of(new Record(path.getFileSystem().getPath(""), hash)));
+        }
+    }
+
+    @Override
+    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        if (!digester.getFilter().enter(dir)) {
+            return FileVisitResult.SKIP_SUBTREE;
+        }
+        Path location = locationOf(dir);
+        if (replay(dir, location)) {
+            return FileVisitResult.SKIP_SUBTREE;
+        }
+        if (remembers(location)) {
+            captures.push(new Capture(dir, location));
+        }
+        digester.getMetrics().pause(directories.peek());
+        directories.push(digester.getMetrics().enter());
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+        if (!digester.getFilter().accept(path, attrs)) {
+            return FileVisitResult.CONTINUE;
+        }
+        Path location = locationOf(path);
+        if (!replay(path, location)) {
+            digester.getMetrics().pause(directories.peek());
+            byte[] hash = digester.digest(path, attrs);
+            digester.getMetrics().resume(directories.peek());
+            writeFile(path, location, hash);
+        }
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFileFailed(Path path, IOException e) throws IOException {
+        if (!digester.getFilter().accept(path)) {
+            return FileVisitResult.CONTINUE;
+        }
+        Path location = locationOf(path);
+        if (!replay(path, location)) {
+            writeFile(path, location, digester.failed(path, e));
+        }
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+        digester.getMetrics().exit(directories.pop(), dir);
+        digester.getMetrics().resume(directories.peek());
+        if (e != null) {
+            throw e;
+        }
+        if (!captures.isEmpty() && captures.peek().dir.equals(dir)) {
+            Capture capture = captures.pop();
+            memo.put(capture.location, capture.records);
+        }
+        return FileVisitResult.CONTINUE;
+    }
+}
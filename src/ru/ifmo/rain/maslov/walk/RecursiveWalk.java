@@ -2,12 +2,22 @@ package ru.ifmo.rain.maslov.walk;
 
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 
 public class RecursiveWalk {
-    private static final int BUFSIZE = 1024;
+    /**
+     * Largest number of input roots planned together; longer inputs are walked as they are read.
+     */
+    static final int PLAN_LIMIT = 1 << 16;
 
     static class RecursiveWalkException extends Exception {
         RecursiveWalkException(String s, Exception e) {
@@ -23,23 +33,26 @@ public class RecursiveWalk {
         }
     }
 
+    /**
+     * Runs the walk, printing errors to standard error. A {@code --worker} exits with code 1 on errors,
+     * so that {@link WalkCoordinator} can tell them from finished work.
+     */
     public static void main(String[] argv) {
         try {
             if (argv == null) {
                 throw new RecursiveWalkException("Incorrect argument: argv is null");
             }
-            if (argv.length != 2) {
-                throw new RecursiveWalkException("Incorrect argument: argv length is not equal 2");
-            }
-            if (argv[0] == null) {
-                throw new RecursiveWalkException("Incorrect argument: first argument is null");
-            }
-            if (argv[1] == null) {
-                throw new RecursiveWalkException("Incorrect argument: second argument is null");
+            for (int i = 0; i < argv.length; ++i) {
+                if (argv[i] == null) {
+                    throw new RecursiveWalkException("Incorrect argument: argument " + (i + 1) + " is null");
+                }
             }
-            execute(argv[0], argv[1]);
+            execute(WalkOptions.parse(argv));
         } catch (RecursiveWalkException e) {
             e.print();
+            if (argv != null && Arrays.asList(argv).contains("--worker")) {
+                System.exit(1);
+            }
         }
 
     }
@@ -52,7 +65,19 @@ public class RecursiveWalk {
         }
     }
 
-    private static void execute(String fileIn, String fileOut) throws RecursiveWalkException {
+    static void execute(WalkOptions options) throws RecursiveWalkException {
+        execute(options, null, WalkThreads.DEDICATED, System.err);
+    }
+
+    /**
+     * @param memory  digests kept in memory between runs, or {@code null}
+     * @param threads threads to run the walk on
+     * @param stats   stream to print {@code --stats} to
+     */
+    static void execute(WalkOptions options, HashCache.Memory memory, WalkThreads threads, PrintStream stats)
+            throws RecursiveWalkException {
+        String fileIn = options.input;
+        String fileOut = options.output;
         Path inPath = getPathFromUser(fileIn, "Invalid input path: ");
         Path outPath = getPathFromUser(fileOut, "Invalid output path: ");
 
@@ -65,68 +90,328 @@ public class RecursiveWalk {
             }
         }
 
-        try (BufferedWriter out = Files.newBufferedWriter(outPath)) {
-            try (BufferedReader in = Files.newBufferedReader(inPath)) {
-                MyVisitor visitor = new MyVisitor(out);
-                String line;
-                while ((line = in.readLine()) != null) {
+        HashCache cache = null;
+        String algorithm = Digester.algorithm(options.hasher, options.samples, options.treeChunk);
+        if (options.cache != null) {
+            Path cachePath = getPathFromUser(options.cache, "Invalid cache path: ");
+            try {
+                cache = HashCache.open(cachePath, algorithm, options.hasher.length(), memory);
+            } catch (IOException e) {
+                throw new RecursiveWalkException("Cannot read cache file: " + options.cache, e);
+            }
+        } else if (memory != null) {
+            cache = HashCache.resident(memory, algorithm, options.hasher.length());
+        }
+        Path checkpointPath = null;
+        Checkpoint resume = null;
+        if (options.checkpoint != null) {
+            checkpointPath = getPathFromUser(options.checkpoint, "Invalid checkpoint path: ");
+            try {
+                resume = Checkpoint.load(checkpointPath);
+            } catch (IOException e) {
+                throw new RecursiveWalkException("Cannot read checkpoint file: " + options.checkpoint, e);
+            }
+        }
+        WalkMetrics metrics = new WalkMetrics();
+        Digester digester = new Digester(options.hasher,
+                new IoEngine(options.bufferSize, options.mapThreshold, metrics,
+                        new IoScheduler(options.deviceReads, options.rate)), cache, metrics, options.samples,
+                options.treeChunk, options.filter, options.inodes);
+        Closeable reporter = options.stats > 0 ? metrics.report(stats, options.stats) : () -> {};
+        ManifestWatcher watcher = null;
+        try (ManifestWriter out = createOutput(options, outPath, digester, resume, threads)) {
+            if (options.watch) {
+                watcher = (ManifestWatcher) out;
+            }
+            try (InputReader input = openInput(fileIn, inPath, threads)) {
+                if (options.workers > 0) {
                     try {
+                        new WalkCoordinator(options.workers, options.arguments, out,
+                                Digester.tag(options.samples, options.treeChunk), options.hasher.length(),
+                                !options.merkle, options.filter).run(input);
+                    } catch (IOException e) {
+                        throw new RecursiveWalkException("Output file write error", e);
+                    }
+                    return;
+                }
+                // other walkers start on the first line, while the rest is still being read
+                List<String> lines = planned(options) ? readAll(input, PLAN_LIMIT) : null;
+                try (Walker walker = createWalker(options, out, digester, lines, checkpointPath, resume,
+                        threads)) {
+                    String line;
+                    for (long skip = resume == null ? 0 : resume.line; skip > 0 && nextLine(input) != null; skip--) {
+                        // lines walked before the checkpoint
+                    }
+                    while ((line = nextLine(input)) != null) {
                         try {
-                            Files.walkFileTree(Paths.get(line), visitor);
-                        } catch (InvalidPathException e) {
-                            out.write(formatFileOutput(0, line));
+                            try {
+                                walker.walk(Paths.get(line));
+                            } catch (InvalidPathException e) {
+                                if (!options.duplicates) {
+                                    out.write(digester.zero(), line);
+                                }
+                            }
+                            if (options.worker) {
+                                out.write(digester.zero(), "");
+                            }
+                            walker.lineWritten();
+                        } catch (IOException e) {
+                            throw new RecursiveWalkException("Output file write error", e);
                         }
+                    }
+                    try {
+                        walker.finish();
                     } catch (IOException e) {
                         throw new RecursiveWalkException("Output file write error", e);
                     }
                 }
-            } catch (IOException e) {
-                throw new RecursiveWalkException("Input file error: ", e);
             }
         } catch (IOException e) {
             throw new RecursiveWalkException("Output file error: ", e);
+        } finally {
+            try {
+                reporter.close();
+            } catch (IOException ignored) {
+            }
+        }
+        if (checkpointPath != null) {
+            try {
+                Files.deleteIfExists(checkpointPath);
+            } catch (IOException e) {
+                throw new RecursiveWalkException("Cannot delete checkpoint file: " + options.checkpoint, e);
+            }
+        }
+        if (cache != null) {
+            try {
+                cache.save();
+            } catch (IOException e) {
+                throw new RecursiveWalkException("Cannot write cache file: " + options.cache, e);
+            }
+        }
+        if (watcher != null) {
+            try {
+                watcher.run();
+            } catch (IOException e) {
+                throw new RecursiveWalkException("Cannot update output file: " + fileOut, e);
+            }
         }
+    }
 
+    private static InputReader openInput(String fileIn, Path inPath, WalkThreads threads)
+            throws RecursiveWalkException {
+        try {
+            return InputReader.open(fileIn, inPath, threads);
+        } catch (IOException e) {
+            throw new RecursiveWalkException("Input file error: ", e);
+        }
     }
 
-    private static String formatFileOutput(int res, String fileName) {
-        return String.format("%08x", res) + " " + fileName + "\n";
+    /**
+     * Returns all input lines if there are at most {@code limit} of them, or {@code null} otherwise.
+     */
+    private static List<String> readAll(InputReader input, int limit) throws RecursiveWalkException {
+        try {
+            return input.readAll(limit);
+        } catch (IOException e) {
+            throw new RecursiveWalkException("Input file error: ", e);
+        }
     }
 
-    private static String hash(Path filePath) {
-        final int FNV_32_PRIME = 0x01000193;
-        int res = 0x811c9dc5;
-        try (InputStream file = Files.newInputStream(filePath)) {
-            byte[] buf = new byte[BUFSIZE];
-            for (int read = 0; read >= 0; read = file.read(buf, 0, BUFSIZE)) {
-                for (int i = 0; i < read; ++i) {
-                    res *= FNV_32_PRIME;
-                    res ^= buf[i] & 0xff;
-                }
-            }
+    private static String nextLine(InputReader input) throws RecursiveWalkException {
+        try {
+            return input.next();
         } catch (IOException e) {
-            res = 0;
+            throw new RecursiveWalkException("Input file error: ", e);
         }
-        return formatFileOutput(res, filePath.toString());
+    }
 
+    /**
+     * @param resume checkpoint to resume from, whose output is kept, or {@code null}
+     */
+    private static ManifestWriter createOutput(WalkOptions options, Path outPath, Digester digester, Checkpoint resume,
+                                               WalkThreads threads) throws IOException {
+        FileChannel channel;
+        if (options.output.equals("-")) {
+            channel = new FileOutputStream(FileDescriptor.out).getChannel();
+        } else if (resume != null) {
+            channel = FileChannel.open(outPath, StandardOpenOption.WRITE);
+            if (channel.size() < resume.offset) {
+                channel.close();
+                throw new IOException("Output file is shorter than the checkpoint: " + outPath);
+            }
+            channel.truncate(resume.offset).position(resume.offset);
+        } else {
+            channel = FileChannel.open(outPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+        }
+        if (options.watch) {
+            return new ManifestWatcher(outPath, channel, digester, Digester.tag(options.samples, options.treeChunk));
+        }
+        ManifestWriter writer = options.binary
+                ? new BinaryManifestWriter(channel, Digester.algorithm(options.hasher, options.samples, options.treeChunk),
+                        options.hasher.length())
+                : new AsyncManifestWriter(channel, Digester.tag(options.samples, options.treeChunk), threads);
+        if (options.virtualThreads > 0) {
+            return new OrderedManifestWriter(writer, options.virtualThreads);
+        }
+        if (options.archives && options.workers == 0) {
+            return new ArchiveExpander(writer, digester, threads.pool(),
+                    options.threads > 0 ? options.threads : Runtime.getRuntime().availableProcessors());
+        }
+        return writer;
+    }
+
+    /**
+     * Whether roots are walked by {@link PlannedWalker}, which needs all input lines before the walk.
+     * Records of shared subtrees cannot be replayed under another path if globs match paths.
+     * A {@code --worker} walks its roots as the coordinator feeds them.
+     */
+    private static boolean planned(WalkOptions options) {
+        return !options.duplicates && !options.watch && options.virtualThreads == 0 && options.checkpoint == null
+                && options.threads == 0 && !options.archives && !options.merkle && !options.filter.matchesPaths()
+                && !options.worker;
+    }
+
+    /**
+     * @param lines      all input lines if the walk is {@link #planned}, or {@code null} if it is not
+     *                   or there are too many lines to plan it
+     * @param checkpoint checkpoint file or {@code null} if checkpoints are not saved
+     * @param resume     checkpoint to resume from or {@code null}
+     */
+    private static Walker createWalker(WalkOptions options, ManifestWriter out, Digester digester, List<String> lines,
+                                       Path checkpoint, Checkpoint resume, WalkThreads threads) {
+        if (options.duplicates) {
+            return new DuplicateFinder(out, digester);
+        }
+        if (options.watch) {
+            return ((ManifestWatcher) out).walker();
+        }
+        if (options.virtualThreads > 0) {
+            return new AsyncWalker((OrderedManifestWriter) out, digester);
+        }
+        if (checkpoint != null) {
+            return new CheckpointWalker((AsyncManifestWriter) out, digester, checkpoint,
+                    TimeUnit.SECONDS.toNanos(options.checkpointInterval), resume);
+        }
+        ArchiveExpander archives = options.archives ? (ArchiveExpander) out : null;
+        if (options.threads > 0) {
+            return new ParallelWalker(threads.pool(), options.threads, out, digester, options.merkle, archives);
+        }
+        if (archives != null) {
+            MyVisitor visitor = new MyVisitor(out, digester, options.merkle) {
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+                    super.visitFile(path, attrs);
+                    if (digester.getFilter().accept(path, attrs) && ArchiveExpander.isArchive(path, attrs)) {
+                        archives.expand(path);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            };
+            return start -> Files.walkFileTree(start, visitor);
+        }
+        if (lines == null) {
+            MyVisitor visitor = new MyVisitor(out, digester, options.merkle);
+            return start -> Files.walkFileTree(start, visitor);
+        }
+        return PlannedWalker.plan(lines, out, digester);
+    }
+
+    /**
+     * Walks one input root and writes its lines.
+     */
+    interface Walker extends Closeable {
+        void walk(Path start) throws IOException;
+
+        /**
+         * Called after records of an input line are written.
+         */
+        default void lineWritten() throws IOException {
+        }
+
+        /**
+         * Called after all input roots are walked.
+         */
+        default void finish() throws IOException {
+        }
+
+        @Override
+        default void close() throws IOException {
+        }
     }
 
     public static class MyVisitor extends SimpleFileVisitor<Path> {
-        private final Writer writer;
+        private final ManifestWriter writer;
+        private final Digester digester;
+        private final Deque<WalkMetrics.DirectoryEvent> directories = new ArrayDeque<>();
+        /**
+         * Directories being visited, or {@code null} if Merkle hashes are not written.
+         */
+        private final Deque<MerkleDirectory> merkle;
 
-        MyVisitor(Writer writer) {
+        MyVisitor(ManifestWriter writer, Digester digester) {
+            this(writer, digester, false);
+        }
+
+        MyVisitor(ManifestWriter writer, Digester digester, boolean merkle) {
             this.writer = writer;
+            this.digester = digester;
+            this.merkle = merkle ? new ArrayDeque<>() : null;
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            if (!digester.getFilter().enter(dir)) {
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+            digester.getMetrics().pause(directories.peek());
+            directories.push(digester.getMetrics().enter());
+            if (merkle != null) {
+                merkle.push(new MerkleDirectory());
+            }
+            return FileVisitResult.CONTINUE;
         }
 
         @Override
         public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
-            writer.write(hash(path));
+            if (digester.getFilter().accept(path, attrs)) {
+                digester.getMetrics().pause(directories.peek());
+                byte[] hash = digester.digest(path, attrs);
+                digester.getMetrics().resume(directories.peek());
+                write(path, hash);
+            }
             return FileVisitResult.CONTINUE;
         }
 
         @Override
         public FileVisitResult visitFileFailed(Path path, IOException e) throws IOException {
-            writer.write(formatFileOutput(0, path.toString()));
+            if (digester.getFilter().accept(path)) {
+                write(path, digester.failed(path, e));
+            }
+            return FileVisitResult.CONTINUE;
+        }
+
+        private void write(Path path, byte[] hash) throws IOException {
+            writer.write(hash, path.toString());
+            if (merkle != null && !merkle.isEmpty()) {
+                merkle.peek().add(path, hash, false);
+            }
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+            digester.getMetrics().exit(directories.pop(), dir);
+            digester.getMetrics().resume(directories.peek());
+            if (e != null) {
+                throw e;
+            }
+            if (merkle != null) {
+                byte[] hash = merkle.pop().finish(digester.getHasher());
+                writer.write(hash, MerkleDirectory.path(dir));
+                if (!merkle.isEmpty()) {
+                    merkle.peek().add(dir, hash, true);
+                }
+            }
             return FileVisitResult.CONTINUE;
         }
     }
@@ -0,0 +1,233 @@
+package ru.ifmo.rain.maslov.walk;
+
+import ru.ifmo.rain.maslov.walk.RecursiveWalk.RecursiveWalkException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Benchmarks {@link RecursiveWalk} on synthetic trees generated in a temporary directory.
+ * <p>
+ * Usage: {@code WalkBenchmark [--warmup N] [--iterations N] [--scale N] [walk options]}.
+ * Walk options, such as {@code --hash} or {@code --threads}, are passed to the walker unchanged.
+ * <p>
+ * Three trees are generated: many tiny files, a few huge files and deeply nested directories.
+ * For each tree three levels are measured: hashing of every file through {@link Digester},
+ * traversal with {@link RecursiveWalk.MyVisitor} and end-to-end run of the walker.
+ * Files are read from the page cache after the first warmup iteration.
+ */
+public class WalkBenchmark {
+    private static final long SEED = 20200301;
+
+    private final int warmup;
+    private final int iterations;
+    private final List<String> walkOptions;
+
+    private WalkBenchmark(int warmup, int iterations, List<String> walkOptions) {
+        this.warmup = warmup;
+        this.iterations = iterations;
+        this.walkOptions = walkOptions;
+    }
+
+    private interface Action {
+        void run() throws IOException, RecursiveWalkException;
+    }
+
+    private static class Tree {
+        private final String name;
+        private final Path root;
+        private final List<Path> files = new ArrayList<>();
+        private long bytes;
+
+        Tree(String name, Path root) {
+            this.name = name;
+            this.root = root;
+        }
+
+        void add(Path file, int size, SplittableRandom random) throws IOException {
+            byte[] data = new byte[size];
+            for (int i = 0; i < size; i++) {
+                data[i] = (byte) random.nextInt();
+            }
+            Files.createDirectories(file.getParent());
+            Files.write(file, data);
+            files.add(file);
+            bytes += size;
+        }
+
+        void addHuge(Path file, long size, SplittableRandom random) throws IOException {
+            Files.createDirectories(file.getParent());
+            byte[] chunk = new byte[1 << 20];
+            try (OutputStream out = Files.newOutputStream(file)) {
+                for (long written = 0; written < size; written += chunk.length) {
+                    for (int i = 0; i < chunk.length; i++) {
+                        chunk[i] = (byte) random.nextInt();
+                    }
+                    out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+                }
+            }
+            files.add(file);
+            bytes += size;
+        }
+    }
+
+    private static Tree tinyFiles(Path dir, int scale, SplittableRandom random) throws IOException {
+        Tree tree = new Tree("tiny", dir.resolve("tiny"));
+        for (int i = 0; i < 10_000 * scale; i++) {
+            tree.add(tree.root.resolve("d" + i % (100 * scale)).resolve("f" + i), random.nextInt(513), random);
+        }
+        return tree;
+    }
+
+    private static Tree hugeFiles(Path dir, int scale, SplittableRandom random) throws IOException {
+        Tree tree = new Tree("huge", dir.resolve("huge"));
+        for (int i = 0; i < 2; i++) {
+            tree.addHuge(tree.root.resolve("f" + i), (128L << 20) * scale, random);
+        }
+        return tree;
+    }
+
+    private static Tree deepNesting(Path dir, int scale, SplittableRandom random) throws IOException {
+        Tree tree = new Tree("deep", dir.resolve("deep"));
+        Path level = tree.root;
+        for (int depth = 0; depth < 100 * scale; depth++) {
+            level = level.resolve("l" + depth);
+            for (int i = 0; i < 5; i++) {
+                tree.add(level.resolve("f" + i), random.nextInt(4096), random);
+            }
+        }
+        return tree;
+    }
+
+    private void measure(String benchmark, Tree tree, Action action) throws IOException, RecursiveWalkException {
+        for (int i = 0; i < warmup; i++) {
+            action.run();
+        }
+        double[] seconds = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            action.run();
+            seconds[i] = (System.nanoTime() - start) / 1e9;
+        }
+        double mean = Arrays.stream(seconds).average().orElse(0);
+        double deviation = Math.sqrt(Arrays.stream(seconds).map(s -> (s - mean) * (s - mean)).sum() / iterations);
+        System.out.printf(Locale.ROOT, "%-8s %-5s %10.3f ms +- %7.3f %12.0f files/s %10.1f MB/s%n",
+                benchmark, tree.name, mean * 1e3, deviation * 1e3,
+                tree.files.size() / mean, tree.bytes / mean / (1 << 20));
+    }
+
+    private void run(Path dir, Tree tree) throws IOException, RecursiveWalkException {
+        WalkOptions options = WalkOptions.parse(walkArguments("in", "out"));
+        WalkMetrics metrics = new WalkMetrics();
+        Digester digester = new Digester(options.hasher,
+                new IoEngine(options.bufferSize, options.mapThreshold, metrics,
+                        new IoScheduler(options.deviceReads, options.rate)), null, metrics, options.samples,
+                options.treeChunk, options.filter, options.inodes);
+        measure("hash", tree, () -> {
+            for (Path file : tree.files) {
+                digester.read(file);
+            }
+        });
+        ManifestWriter discard = new ManifestWriter() {
+            @Override
+            public void write(byte[] hash, String path) {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        RecursiveWalk.MyVisitor visitor = new RecursiveWalk.MyVisitor(discard, digester);
+        measure("visitor", tree, () -> Files.walkFileTree(tree.root, visitor));
+
+        Path input = dir.resolve(tree.name + ".in");
+        Files.writeString(input, tree.root + System.lineSeparator());
+        WalkOptions endToEnd = WalkOptions.parse(walkArguments(input.toString(), dir.resolve(tree.name + ".out").toString()));
+        measure("execute", tree, () -> RecursiveWalk.execute(endToEnd));
+    }
+
+    private String[] walkArguments(String input, String output) {
+        List<String> arguments = new ArrayList<>(walkOptions);
+        arguments.add(input);
+        arguments.add(output);
+        return arguments.toArray(new String[0]);
+    }
+
+    private static void delete(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static int intArgument(String[] argv, int i) {
+        if (i >= argv.length) {
+            throw new IllegalArgumentException("Value expected after " + argv[i - 1]);
+        }
+        return Integer.parseInt(argv[i]);
+    }
+
+    public static void main(String[] argv) {
+        int warmup = 3;
+        int iterations = 5;
+        int scale = 1;
+        List<String> walkOptions = new ArrayList<>();
+        try {
+            for (int i = 0; i < argv.length; i++) {
+                switch (argv[i]) {
+                    case "--warmup":
+                        warmup = intArgument(argv, ++i);
+                        break;
+                    case "--iterations":
+                        iterations = intArgument(argv, ++i);
+                        break;
+                    case "--scale":
+                        scale = intArgument(argv, ++i);
+                        break;
+                    default:
+                        walkOptions.add(argv[i]);
+                }
+            }
+            if (iterations <= 0 || warmup < 0 || scale <= 0) {
+                throw new IllegalArgumentException("Iterations and scale must be positive");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Incorrect argument: " + e.getMessage());
+            return;
+        }
+
+        WalkBenchmark benchmark = new WalkBenchmark(warmup, iterations, walkOptions);
+        Path dir = null;
+        try {
+            dir = Files.createTempDirectory("walk-benchmark");
+            SplittableRandom random = new SplittableRandom(SEED);
+            for (Tree tree : List.of(tinyFiles(dir, scale, random), hugeFiles(dir, scale, random), deepNesting(dir, scale, random))) {
+                benchmark.run(dir, tree);
+            }
+        } catch (IOException e) {
+            System.err.println("Benchmark failed: " + e.getMessage());
+        } catch (RecursiveWalkException e) {
+            e.print();
+        } finally {
+            if (dir != null) {
+                try {
+                    delete(dir);
+                } catch (IOException e) {
+                    System.err.println("Cannot remove benchmark directory " + dir + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+}
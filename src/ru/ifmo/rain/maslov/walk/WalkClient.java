@@ -0,0 +1,92 @@
+package ru.ifmo.rain.maslov.walk;
+
+import ru.ifmo.rain.maslov.walk.RecursiveWalk.RecursiveWalkException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Sends a {@link RecursiveWalk} job to a {@link WalkServer} and waits for it to finish.
+ * <p>
+ * Usage: {@code WalkClient <socket> <RecursiveWalk arguments>}. If no server listens on the socket,
+ * or the server declines the job, it runs in this JVM as {@link RecursiveWalk#main} would run it.
+ * Errors and standard error text of the job, such as {@code --stats}, are printed to standard error.
+ */
+public class WalkClient {
+    private static final String USAGE = "Usage: WalkClient <socket> [options] <input file> <output file>";
+
+    /**
+     * Runs the job on the server.
+     *
+     * @return whether the server has run the job
+     * @throws IOException if the server fails while running the job
+     */
+    private static boolean send(Path socket, String[] arguments) throws IOException, RecursiveWalkException {
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            return false;
+        }
+        try (channel) {
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+            out.writeUTF(Path.of("").toAbsolutePath().toString());
+            out.writeInt(arguments.length);
+            for (String argument : arguments) {
+                out.writeUTF(argument);
+            }
+            out.flush();
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            int status;
+            while ((status = in.readInt()) == WalkServer.OUTPUT) {
+                byte[] text = new byte[in.readInt()];
+                in.readFully(text);
+                System.err.write(text);
+                System.err.flush();
+            }
+            String message = in.readUTF();
+            if (status == WalkServer.FAILED) {
+                throw new RecursiveWalkException(message);
+            }
+            return status != WalkServer.DECLINED;
+        }
+    }
+
+    public static void main(String[] argv) {
+        try {
+            if (argv == null || argv.length == 0) {
+                throw new RecursiveWalkException(USAGE);
+            }
+            for (int i = 0; i < argv.length; ++i) {
+                if (argv[i] == null) {
+                    throw new RecursiveWalkException("Incorrect argument: argument " + (i + 1) + " is null");
+                }
+            }
+            Path socket;
+            try {
+                socket = Path.of(argv[0]);
+            } catch (InvalidPathException e) {
+                throw new RecursiveWalkException("Invalid socket path: " + argv[0], e);
+            }
+            String[] arguments = Arrays.copyOfRange(argv, 1, argv.length);
+            boolean done;
+            try {
+                done = send(socket, arguments);
+            } catch (IOException e) {
+                throw new RecursiveWalkException("Walk server error: " + socket, e);
+            }
+            if (!done) {
+                RecursiveWalk.main(arguments);
+            }
+        } catch (RecursiveWalkException e) {
+            e.print();
+        }
+    }
+}
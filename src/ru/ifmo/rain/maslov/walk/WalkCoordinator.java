@@ -0,0 +1,342 @@
+package ru.ifmo.rain.maslov.walk;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Walks input roots on worker processes.
+ * <p>
+ * Unless Merkle hashes are written, directory roots are first replaced by their entries, level by level,
+ * until there are at least {@link #SPLIT} roots per worker; the entries are walked exactly as the directory
+ * would be. Roots are dealt to workers round-robin through their standard input as they are read.
+ * Every worker runs {@code RecursiveWalk} with the same options, {@code --worker} and standard input and output as files,
+ * writing text records of each root followed by a record with an empty path. Records are read back
+ * over pipes, at most {@link #BATCHES} batches per worker ahead, and written in the order of roots.
+ */
+class WalkCoordinator {
+    static final int SPLIT = 4;
+    private static final int MAX_SPLIT_DEPTH = 4;
+    private static final int BATCH = 1024;
+    private static final int BATCHES = 16;
+    private static final List<String> EOF = Collections.emptyList();
+
+    private final int workers;
+    private final List<String> arguments;
+    private final ManifestWriter writer;
+    private final String tag;
+    private final int length;
+    private final boolean split;
+    private final WalkFilter filter;
+
+    /**
+     * @param arguments options passed to workers
+     * @param tag       prefix of hashes in text manifests
+     * @param length    length of hashes in bytes
+     * @param split     whether directory roots may be split into their entries
+     * @param filter    entries walked by workers, excluded directory roots are not split
+     */
+    WalkCoordinator(int workers, List<String> arguments, ManifestWriter writer, String tag, int length, boolean split,
+                    WalkFilter filter) {
+        this.workers = workers;
+        this.arguments = arguments;
+        this.writer = writer;
+        this.tag = tag;
+        this.length = length;
+        this.split = split;
+        this.filter = filter;
+    }
+
+    /**
+     * Walks roots read from the input. Roots are only split if there are at most
+     * {@link RecursiveWalk#PLAN_LIMIT} of them.
+     */
+    void run(InputReader input) throws IOException {
+        List<String> lines = input.readAll(RecursiveWalk.PLAN_LIMIT);
+        Source source;
+        int count = workers;
+        if (lines != null) {
+            List<String> roots = split ? split(lines, workers * SPLIT) : lines;
+            Iterator<String> iterator = roots.iterator();
+            source = () -> iterator.hasNext() ? iterator.next() : null;
+            count = Math.max(1, Math.min(workers, roots.size()));
+        } else {
+            source = input::next;
+        }
+        Worker[] running = new Worker[count];
+        Feeder feeder = new Feeder(source, running);
+        try {
+            for (int i = 0; i < running.length; i++) {
+                running[i] = new Worker(i);
+            }
+            feeder.start();
+            for (long i = 0; feeder.await(i); i++) {
+                running[(int) (i % running.length)].copy();
+            }
+            for (Worker worker : running) {
+                worker.finish();
+            }
+        } finally {
+            feeder.interrupt();
+            for (Worker worker : running) {
+                if (worker != null) {
+                    worker.process.destroyForcibly();
+                }
+            }
+        }
+    }
+
+    private interface Source {
+        /**
+         * Returns the next root or {@code null} if there are no more roots.
+         */
+        String next() throws IOException;
+    }
+
+    /**
+     * Deals roots to workers round-robin.
+     */
+    private static class Feeder extends Thread {
+        private final Source source;
+        private final Worker[] workers;
+        private long fed;
+        private boolean done;
+        private IOException failure;
+
+        Feeder(Source source, Worker[] workers) {
+            super("walk-feeder");
+            setDaemon(true);
+            this.source = source;
+            this.workers = workers;
+        }
+
+        @Override
+        public void run() {
+            IOException failure = null;
+            try {
+                String root;
+                for (long i = 0; (root = source.next()) != null; i++) {
+                    Writer in = workers[(int) (i % workers.length)].in;
+                    in.write(root);
+                    in.write('\n');
+                    if (i % workers.length == workers.length - 1) {
+                        // a round of roots is flushed at once rather than a root at a time
+                        for (Worker worker : workers) {
+                            worker.in.flush();
+                        }
+                    }
+                    synchronized (this) {
+                        fed = i + 1;
+                        notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            for (Worker worker : workers) {
+                try {
+                    worker.in.close();
+                } catch (IOException ignored) {
+                    // the worker has exited, which is reported by its output reader
+                }
+            }
+            synchronized (this) {
+                this.failure = failure;
+                done = true;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Waits until the root is fed to a worker.
+         *
+         * @return {@code false} if there is no such root
+         */
+        synchronized boolean await(long root) throws IOException {
+            while (fed <= root && !done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reading input");
+                }
+            }
+            if (fed > root) {
+                return true;
+            }
+            if (failure != null) {
+                throw new IOException("Input file error", failure);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Replaces directory roots by their entries.
+     */
+    private List<String> split(List<String> lines, int target) {
+        List<String> roots = lines;
+        for (int depth = 0; depth < MAX_SPLIT_DEPTH && roots.size() < target; depth++) {
+            List<String> next = new ArrayList<>();
+            boolean changed = false;
+            for (String root : roots) {
+                List<String> entries = entries(root);
+                if (entries == null) {
+                    next.add(root);
+                } else {
+                    next.addAll(entries);
+                    changed = true;
+                }
+            }
+            if (!changed) {
+                break;
+            }
+            roots = next;
+        }
+        return roots;
+    }
+
+    /**
+     * Returns entries of the directory in the order they are walked,
+     * or {@code null} if the root is not a directory or cannot be split.
+     */
+    private List<String> entries(String root) {
+        try {
+            Path dir = Paths.get(root);
+            if (!Files.readAttributes(dir, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isDirectory()
+                    || !filter.enter(dir)) {
+                return null;
+            }
+            List<String> entries = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path entry : stream) {
+                    String line = entry.toString();
+                    if (line.indexOf('\n') >= 0 || line.indexOf('\r') >= 0 || !Paths.get(line).equals(entry)) {
+                        return null;
+                    }
+                    entries.add(line);
+                }
+            }
+            return entries;
+        } catch (IOException | DirectoryIteratorException | InvalidPathException e) {
+            return null;
+        }
+    }
+
+    private List<String> command() {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command()
+                .orElse(Path.of(System.getProperty("java.home"), "bin", "java").toString()));
+        Module module = RecursiveWalk.class.getModule();
+        String modulePath = System.getProperty("jdk.module.path");
+        if (module.isNamed() && modulePath != null) {
+            command.addAll(List.of("-p", modulePath, "-m", module.getName() + "/" + RecursiveWalk.class.getName()));
+        } else {
+            command.addAll(List.of("-cp", System.getProperty("java.class.path"), RecursiveWalk.class.getName()));
+        }
+        command.addAll(arguments);
+        command.addAll(List.of("--worker", "-", "-"));
+        return command;
+    }
+
+    private class Worker {
+        private final int index;
+        private final Process process;
+        private final Writer in;
+        private final BlockingQueue<List<String>> batches = new ArrayBlockingQueue<>(BATCHES);
+        private final byte[] hash = new byte[length];
+        private List<String> batch = new ArrayList<>();
+        private int next;
+
+        Worker(int index) throws IOException {
+            this.index = index;
+            this.process = new ProcessBuilder(command()).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            this.in = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+            start("walk-worker-output-" + index, this::read);
+        }
+
+        private void start(String name, Runnable task) {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void read() {
+            try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                List<String> lines = new ArrayList<>(BATCH);
+                String line;
+                while ((line = out.readLine()) != null) {
+                    lines.add(line);
+                    if (lines.size() == BATCH) {
+                        batches.put(lines);
+                        lines = new ArrayList<>(BATCH);
+                    }
+                }
+                batches.put(lines);
+            } catch (IOException ignored) {
+                // output ends early, which is reported by the coordinator
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                batches.put(EOF);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Writes records of the next root of the worker.
+         */
+        void copy() throws IOException {
+            int width = tag.length() + 2 * length;
+            while (true) {
+                while (next == batch.size()) {
+                    try {
+                        batch = batches.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for worker " + index);
+                    }
+                    next = 0;
+                    if (batch == EOF) {
+                        finish();
+                        throw new IOException("Worker " + index + " exited before finishing its roots");
+                    }
+                }
+                String line = batch.get(next++);
+                if (line.length() <= width || line.charAt(width) != ' ' || !line.startsWith(tag)
+                        || !ManifestConverter.parseHex(line, tag.length(), hash)) {
+                    throw new IOException("Unexpected output of worker " + index + ": " + line);
+                }
+                if (line.length() == width + 1) {
+                    return;
+                }
+                writer.write(hash, line.substring(width + 1));
+            }
+        }
+
+        /**
+         * Waits for the worker to exit.
+         */
+        void finish() throws IOException {
+            try {
+                int code = process.waitFor();
+                if (code != 0) {
+                    throw new IOException("Worker " + index + " exited with code " + code);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for worker " + index);
+            }
+        }
+    }
+}
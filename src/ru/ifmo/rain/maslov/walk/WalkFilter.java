@@ -0,0 +1,152 @@
+package ru.ifmo.rain.maslov.walk;
+
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Selects entries to walk, evaluated during traversal so that excluded subtrees are not listed
+ * and excluded files are not hashed.
+ * <p>
+ * A glob without a name separator matches the name of an entry, a glob with one matches its whole path
+ * as written in records. Directories matching an exclude glob are skipped with all their contents.
+ * Files are walked if they match an include glob, if there are any, match no exclude glob, and their size
+ * and modification time are within the bounds. Entries that cannot be visited are only matched by name.
+ */
+class WalkFilter {
+    private final List<Glob> includes = new ArrayList<>();
+    private final List<Glob> excludes = new ArrayList<>();
+    private long minSize;
+    private long maxSize = Long.MAX_VALUE;
+    private long after = Long.MIN_VALUE;
+    private long before = Long.MAX_VALUE;
+    private boolean paths;
+
+    /**
+     * @throws IllegalArgumentException if the glob is malformed
+     */
+    void include(String glob) {
+        includes.add(glob(glob));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the glob is malformed
+     */
+    void exclude(String glob) {
+        excludes.add(glob(glob));
+    }
+
+    private Glob glob(String glob) {
+        FileSystem fs = FileSystems.getDefault();
+        Glob result = new Glob(fs.getPathMatcher("glob:" + glob),
+                glob.indexOf('/') >= 0 || glob.contains(fs.getSeparator()));
+        paths |= result.path;
+        return result;
+    }
+
+    private static class Glob {
+        private final PathMatcher matcher;
+        /**
+         * Whether the whole path is matched rather than the name.
+         */
+        private final boolean path;
+
+        Glob(PathMatcher matcher, boolean path) {
+            this.matcher = matcher;
+            this.path = path;
+        }
+    }
+
+    /**
+     * Walks files of at least the given number of bytes.
+     */
+    void minSize(long size) {
+        minSize = size;
+    }
+
+    /**
+     * Walks files of at most the given number of bytes.
+     */
+    void maxSize(long size) {
+        maxSize = size;
+    }
+
+    /**
+     * Walks files modified at or after the time, in milliseconds since the epoch.
+     */
+    void modifiedAfter(long time) {
+        after = time;
+    }
+
+    /**
+     * Walks files modified before the time, in milliseconds since the epoch.
+     */
+    void modifiedBefore(long time) {
+        before = time;
+    }
+
+    /**
+     * Whether some glob matches whole paths rather than names, so that equal subtrees
+     * reached by different paths may be filtered differently.
+     */
+    boolean matchesPaths() {
+        return paths;
+    }
+
+    /**
+     * Whether the directory is entered.
+     */
+    boolean enter(Path dir) {
+        return excludes.isEmpty() || !matches(excludes, dir);
+    }
+
+    /**
+     * Whether the entry that cannot be visited is written.
+     */
+    boolean accept(Path path) {
+        return (includes.isEmpty() || matches(includes, path)) && (excludes.isEmpty() || !matches(excludes, path));
+    }
+
+    /**
+     * Whether the file with the given attributes is hashed and written.
+     */
+    boolean accept(Path file, BasicFileAttributes attrs) {
+        if (attrs.size() < minSize || attrs.size() > maxSize) {
+            return false;
+        }
+        if (after != Long.MIN_VALUE || before != Long.MAX_VALUE) {
+            long modified = attrs.lastModifiedTime().toMillis();
+            if (modified < after || modified >= before) {
+                return false;
+            }
+        }
+        return accept(file);
+    }
+
+    private static boolean matches(List<Glob> globs, Path path) {
+        Path name = path.getFileName();
+        Path whole = path;
+        if (path.getFileSystem() != FileSystems.getDefault()) {
+            // archive entries are matched as paths of the default file system
+            FileSystem fs = FileSystems.getDefault();
+            try {
+                whole = fs.getPath(path.toString());
+                name = name == null ? null : fs.getPath(name.toString());
+            } catch (InvalidPathException e) {
+                return false;
+            }
+        }
+        for (Glob glob : globs) {
+            Path matched = glob.path ? whole : name;
+            if (matched != null && glob.matcher.matches(matched)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
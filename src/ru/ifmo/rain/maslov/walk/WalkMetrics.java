@@ -0,0 +1,259 @@
+package ru.ifmo.rain.maslov.walk;
+
+import jdk.jfr.*;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a walk run: files, bytes read, open latencies, failed visits and slowest directories.
+ * Directories are timed while they are listed, without their subdirectories and hashing of their files,
+ * so that every walker reports the directories that are slow to list themselves.
+ * <p>
+ * The same points are exposed as JFR events in category {@code RecursiveWalk}, recorded only
+ * while a flight recording enables them, for example with {@code -XX:StartFlightRecording}.
+ */
+class WalkMetrics {
+    private static final int BUCKETS = 40;
+    private static final int SLOWEST = 5;
+
+    private final long start = System.nanoTime();
+    private final LongAdder files = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder failedVisits = new LongAdder();
+    private final LongAdder readErrors = new LongAdder();
+    private final LongAdder linked = new LongAdder();
+    /**
+     * Number of opens that took less than {@code 2^i} microseconds, but not less than {@code 2^(i-1)}.
+     */
+    private final AtomicLongArray openLatency = new AtomicLongArray(BUCKETS);
+    private final PriorityQueue<Directory> slowest = new PriorityQueue<>(Comparator.comparingLong(d -> d.nanos));
+
+    private static class Directory {
+        private final Path path;
+        private final long nanos;
+
+        Directory(Path path, long nanos) {
+            this.path = path;
+            this.nanos = nanos;
+        }
+    }
+
+    @Name("ru.ifmo.rain.maslov.walk.FileRead")
+    @Label("File Read")
+    @Category("RecursiveWalk")
+    @Description("Contents of a file read for hashing")
+    static class FileReadEvent extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Open Time")
+        @Timespan
+        long openTime;
+    }
+
+    @Name("ru.ifmo.rain.maslov.walk.VisitFailed")
+    @Label("Visit Failed")
+    @Category("RecursiveWalk")
+    @Description("File or directory that could not be visited")
+    static class VisitFailedEvent extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Error")
+        String error;
+    }
+
+    @Name("ru.ifmo.rain.maslov.walk.Directory")
+    @Label("Directory")
+    @Category("RecursiveWalk")
+    @Description("Time spent listing a directory, without its subdirectories and hashing of its files")
+    static class DirectoryEvent extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Listing Time")
+        @Timespan
+        long listing;
+
+        transient long started;
+        transient long paused;
+        transient long excluded;
+    }
+
+    /**
+     * Starts timing of a file read.
+     */
+    FileReadEvent beginRead() {
+        FileReadEvent event = new FileReadEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Records file that was opened in {@code openNanos} and read completely.
+     */
+    void endRead(FileReadEvent event, Path file, long openNanos, long size) {
+        bytes.add(size);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(TimeUnit.NANOSECONDS.toMicros(openNanos)));
+        openLatency.incrementAndGet(bucket);
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = file.toString();
+            event.bytes = size;
+            event.openTime = openNanos;
+            event.commit();
+        }
+    }
+
+    void file() {
+        files.increment();
+    }
+
+    void readError() {
+        readErrors.increment();
+    }
+
+    /**
+     * Records file whose digest was reused from another name of the same inode.
+     */
+    void linked() {
+        linked.increment();
+    }
+
+    void failed(Path path, Exception e) {
+        failedVisits.increment();
+        VisitFailedEvent event = new VisitFailedEvent();
+        if (event.isEnabled()) {
+            event.path = path.toString();
+            event.error = String.valueOf(e);
+            event.commit();
+        }
+    }
+
+    /**
+     * Starts timing of a directory.
+     */
+    DirectoryEvent enter() {
+        DirectoryEvent event = new DirectoryEvent();
+        event.started = System.nanoTime();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Stops timing of the directory while its subdirectory or file is visited.
+     *
+     * @param event directory being visited, or {@code null} outside of directories
+     */
+    void pause(DirectoryEvent event) {
+        if (event != null) {
+            event.paused = System.nanoTime();
+        }
+    }
+
+    /**
+     * Resumes timing of the directory stopped by {@link #pause}.
+     *
+     * @param event directory being visited, or {@code null} outside of directories
+     */
+    void resume(DirectoryEvent event) {
+        if (event != null) {
+            event.excluded += System.nanoTime() - event.paused;
+        }
+    }
+
+    /**
+     * Records directory timed since the matching {@link #enter()}, except while it was paused.
+     */
+    void exit(DirectoryEvent event, Path dir) {
+        long nanos = System.nanoTime() - event.started - event.excluded;
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = dir.toString();
+            event.listing = nanos;
+            event.commit();
+        }
+        synchronized (slowest) {
+            if (slowest.size() < SLOWEST || slowest.peek().nanos < nanos) {
+                slowest.add(new Directory(dir, nanos));
+                if (slowest.size() > SLOWEST) {
+                    slowest.poll();
+                }
+            }
+        }
+    }
+
+    private long percentile(double fraction) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += openLatency.get(i);
+        }
+        long rank = (long) Math.ceil(total * fraction);
+        for (int i = 0; i < BUCKETS; i++) {
+            rank -= openLatency.get(i);
+            if (rank <= 0) {
+                return 1L << i;
+            }
+        }
+        return 0;
+    }
+
+    String summary() {
+        double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+        long fileCount = files.sum();
+        double megabytes = bytes.sum() / (double) (1 << 20);
+        StringBuilder result = new StringBuilder(String.format(Locale.ROOT,
+                "%.1f s: %d files (%.0f/s), %.1f MB read (%.1f MB/s), %d failed visits, %d read errors, "
+                        + "open p50 < %d us, p99 < %d us",
+                seconds, fileCount, fileCount / seconds, megabytes, megabytes / seconds,
+                failedVisits.sum(), readErrors.sum(), percentile(0.5), percentile(0.99)));
+        long linkedCount = linked.sum();
+        if (linkedCount > 0) {
+            result.append(String.format(Locale.ROOT, ", %d repeated inodes", linkedCount));
+        }
+        List<Directory> directories;
+        synchronized (slowest) {
+            directories = new ArrayList<>(slowest);
+        }
+        if (!directories.isEmpty()) {
+            directories.sort(Comparator.comparingLong((Directory d) -> d.nanos).reversed());
+            result.append(", slowest directories:");
+            for (Directory directory : directories) {
+                result.append(String.format(Locale.ROOT, " %s (%.3f s)", directory.path, directory.nanos / 1e9));
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Prints {@link #summary()} every {@code period} seconds until closed, and once more on close.
+     */
+    Closeable report(PrintStream out, long period) {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "walk-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleAtFixedRate(() -> out.println("walk: " + summary()), period, period, TimeUnit.SECONDS);
+        return () -> {
+            timer.shutdownNow();
+            out.println("walk: " + summary());
+        };
+    }
+}
@@ -0,0 +1,324 @@
+package ru.ifmo.rain.maslov.walk;
+
+import ru.ifmo.rain.maslov.walk.RecursiveWalk.RecursiveWalkException;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Command line options of {@link RecursiveWalk}.
+ * <p>
+ * Usage: {@code RecursiveWalk [options] <input file> <output file>}, where {@code -} stands for
+ * standard input or output.
+ */
+class WalkOptions {
+    static final String USAGE = "Usage: RecursiveWalk [options] <input file> <output file>, - for standard input or output\n"
+            + "  --threads N             walk and hash on N worker threads, keeping sequential output order\n"
+            + "  --virtual-threads N     hash each file on its own virtual thread, at most N files in flight\n"
+            + "  --workers N             walk on N worker processes run with the other options, keeping input order\n"
+            + "  --worker                write a record with an empty path after records of each root, used by --workers\n"
+            + "  --buffer-size BYTES     per-thread direct read buffer size (default 64K)\n"
+            + "  --mmap-threshold BYTES  memory-map files of at least this size, 0 disables (default 16M)\n"
+            + "  --device-reads N        read at most N files at once from each device\n"
+            + "  --rate BYTES            read at most BYTES per second from each device\n"
+            + "  --hash NAME             hash algorithm: " + FileHashers.names() + " (default " + FileHashers.DEFAULT + ")\n"
+            + "  --fingerprint N         write \"fp:\" tagged hashes of file size and 4K samples at the head, the tail\n"
+            + "                          and N offsets between them instead of full contents\n"
+            + "  --tree-hash CHUNK       write \"tree:\" tagged hashes of file size and digests of CHUNK byte chunks,\n"
+            + "                          hashed in parallel, instead of sequential hashes of contents\n"
+            + "  --merkle                also write Merkle hash of every directory, after its contents, with a trailing\n"
+            + "                          separator after the path\n"
+            + "  --archives              also write records of entries inside zip and jar files, named <archive>!<entry>\n"
+            + "  --include GLOB          walk only files matching GLOB, may be repeated; a GLOB without a separator\n"
+            + "                          matches names, one with a separator matches paths\n"
+            + "  --exclude GLOB          skip files and whole directories matching GLOB, may be repeated\n"
+            + "  --min-size BYTES        walk only files of at least BYTES\n"
+            + "  --max-size BYTES        walk only files of at most BYTES\n"
+            + "  --modified-after TIME   walk only files modified at or after TIME, an ISO date or instant\n"
+            + "  --modified-before TIME  walk only files modified before TIME, an ISO date or instant\n"
+            + "  --dedup-inodes          hash files sharing an inode, such as hard links, once per walk\n"
+            + "  --duplicates            write clusters of files with equal contents as records with equal hashes\n"
+            + "  --format text|binary    manifest format, binary is read by BinaryManifest (default text)\n"
+            + "  --watch                 after the walk, keep updating the output as files change until killed\n"
+            + "  --stats SECONDS         print walk statistics to stderr every SECONDS and at the end\n"
+            + "  --checkpoint FILE       save progress to FILE periodically and resume from it if it exists\n"
+            + "  --checkpoint-interval SECONDS  seconds between checkpoints (default 60)\n"
+            + "  --cache FILE            reuse digests of files with unchanged key, size and mtime between runs";
+
+    String input;
+    String output;
+    int threads;
+    int virtualThreads;
+    int workers;
+    boolean worker;
+    /**
+     * Options passed to {@link WalkCoordinator workers}, all but the output format.
+     */
+    List<String> arguments = new ArrayList<>();
+    int bufferSize = IoEngine.DEFAULT_BUFFER_SIZE;
+    long mapThreshold = IoEngine.DEFAULT_MAP_THRESHOLD;
+    int deviceReads;
+    long rate;
+    FileHasher hasher = FileHashers.forName(FileHashers.DEFAULT);
+    WalkFilter filter = new WalkFilter();
+    String cache;
+    String checkpoint;
+    int checkpointInterval = 60;
+    boolean duplicates;
+    boolean inodes;
+    int samples = Digester.FULL;
+    long treeChunk;
+    boolean merkle;
+    boolean archives;
+    int stats;
+    boolean binary;
+    boolean watch;
+
+    static WalkOptions parse(String[] argv) throws RecursiveWalkException {
+        WalkOptions options = new WalkOptions();
+        int positional = 0;
+        long minSize = 0;
+        long maxSize = Long.MAX_VALUE;
+        for (int i = 0; i < argv.length; ++i) {
+            String arg = argv[i];
+            if (arg.startsWith("--")) {
+                int from = i;
+                switch (arg) {
+                    case "--workers":
+                        options.workers = intValue(argv, ++i, arg);
+                        continue;
+                    case "--worker":
+                        options.worker = true;
+                        continue;
+                    case "--threads":
+                        options.threads = intValue(argv, ++i, arg);
+                        break;
+                    case "--virtual-threads":
+                        options.virtualThreads = intValue(argv, ++i, arg);
+                        break;
+                    case "--buffer-size":
+                        options.bufferSize = (int) Math.min(Integer.MAX_VALUE - 8, sizeValue(argv, ++i, arg));
+                        if (options.bufferSize == 0) {
+                            throw new RecursiveWalkException("Incorrect argument: " + arg + " must be positive");
+                        }
+                        break;
+                    case "--mmap-threshold":
+                        options.mapThreshold = sizeValue(argv, ++i, arg);
+                        break;
+                    case "--device-reads":
+                        options.deviceReads = intValue(argv, ++i, arg);
+                        break;
+                    case "--rate":
+                        options.rate = sizeValue(argv, ++i, arg);
+                        break;
+                    case "--hash":
+                        String name = value(argv, ++i, arg);
+                        options.hasher = FileHashers.forName(name);
+                        if (options.hasher == null) {
+                            throw new RecursiveWalkException("Incorrect argument: unknown hash algorithm " + name
+                                    + ", expected one of " + FileHashers.names());
+                        }
+                        break;
+                    case "--fingerprint":
+                        options.samples = intValue(argv, ++i, arg);
+                        break;
+                    case "--tree-hash":
+                        options.treeChunk = sizeValue(argv, ++i, arg);
+                        if (options.treeChunk == 0) {
+                            throw new RecursiveWalkException("Incorrect argument: " + arg + " must be positive");
+                        }
+                        break;
+                    case "--merkle":
+                        options.merkle = true;
+                        break;
+                    case "--archives":
+                        options.archives = true;
+                        break;
+                    case "--include":
+                    case "--exclude":
+                        String glob = value(argv, ++i, arg);
+                        try {
+                            if (arg.equals("--include")) {
+                                options.filter.include(glob);
+                            } else {
+                                options.filter.exclude(glob);
+                            }
+                        } catch (IllegalArgumentException e) {
+                            throw new RecursiveWalkException("Incorrect argument: " + arg + " " + glob, e);
+                        }
+                        break;
+                    case "--min-size":
+                        minSize = sizeValue(argv, ++i, arg);
+                        options.filter.minSize(minSize);
+                        break;
+                    case "--max-size":
+                        maxSize = sizeValue(argv, ++i, arg);
+                        options.filter.maxSize(maxSize);
+                        break;
+                    case "--modified-after":
+                        options.filter.modifiedAfter(timeValue(argv, ++i, arg));
+                        break;
+                    case "--modified-before":
+                        options.filter.modifiedBefore(timeValue(argv, ++i, arg));
+                        break;
+                    case "--dedup-inodes":
+                        options.inodes = true;
+                        break;
+                    case "--duplicates":
+                        options.duplicates = true;
+                        break;
+                    case "--format":
+                        String format = value(argv, ++i, arg);
+                        if (!format.equals("text") && !format.equals("binary")) {
+                            throw new RecursiveWalkException("Incorrect argument: unknown format " + format
+                                    + ", expected text or binary");
+                        }
+                        options.binary = format.equals("binary");
+                        break;
+                    case "--watch":
+                        options.watch = true;
+                        break;
+                    case "--stats":
+                        options.stats = intValue(argv, ++i, arg);
+                        break;
+                    case "--checkpoint":
+                        options.checkpoint = value(argv, ++i, arg);
+                        break;
+                    case "--checkpoint-interval":
+                        options.checkpointInterval = intValue(argv, ++i, arg);
+                        break;
+                    case "--cache":
+                        options.cache = value(argv, ++i, arg);
+                        break;
+                    default:
+                        throw new RecursiveWalkException("Incorrect argument: unknown option " + arg + "\n" + USAGE);
+                }
+                if (!arg.equals("--format")) {
+                    // workers always write text
+                    options.arguments.addAll(Arrays.asList(argv).subList(from, i + 1));
+                }
+            } else if (positional == 0) {
+                options.input = arg;
+                positional++;
+            } else if (positional == 1) {
+                options.output = arg;
+                positional++;
+            } else {
+                throw new RecursiveWalkException("Incorrect argument: too many file arguments\n" + USAGE);
+            }
+        }
+        if (positional != 2) {
+            throw new RecursiveWalkException("Incorrect argument: input and output files expected\n" + USAGE);
+        }
+        if (minSize > maxSize) {
+            throw new RecursiveWalkException("Incorrect argument: --min-size is greater than --max-size");
+        }
+        exclusive(options.threads > 0, "--threads", options.virtualThreads > 0, "--virtual-threads");
+        exclusive(options.duplicates, "--duplicates", options.threads > 0 || options.virtualThreads > 0, "parallel modes");
+        exclusive(options.duplicates, "--duplicates", options.samples != Digester.FULL, "--fingerprint");
+        // the finder hashes only colliding files, so saving the cache would drop all other entries
+        exclusive(options.duplicates, "--duplicates", options.cache != null, "--cache");
+        exclusive(options.treeChunk > 0, "--tree-hash", options.samples != Digester.FULL, "--fingerprint");
+        exclusive(options.merkle, "--merkle", options.duplicates || options.watch, "--duplicates or --watch");
+        exclusive(options.merkle, "--merkle", options.virtualThreads > 0, "--virtual-threads");
+        exclusive(options.archives, "--archives", options.duplicates || options.watch, "--duplicates or --watch");
+        exclusive(options.archives, "--archives", options.virtualThreads > 0, "--virtual-threads");
+        exclusive(options.watch, "--watch", options.duplicates || options.binary, "--duplicates or --format binary");
+        exclusive(options.watch, "--watch", options.inodes, "--dedup-inodes");
+        exclusive(options.watch, "--watch", options.threads > 0 || options.virtualThreads > 0, "parallel modes");
+        exclusive(options.watch, "--watch", options.output.equals("-"), "standard output");
+        exclusive(options.workers > 0, "--workers", options.worker, "--worker");
+        exclusive(options.workers > 0, "--workers", options.duplicates || options.watch, "--duplicates or --watch");
+        exclusive(options.worker, "--worker", options.duplicates || options.watch, "--duplicates or --watch");
+        exclusive(options.workers > 0, "--workers", options.cache != null, "--cache");
+        exclusive(options.checkpoint != null, "--checkpoint",
+                options.threads > 0 || options.virtualThreads > 0 || options.workers > 0, "parallel modes");
+        exclusive(options.checkpoint != null, "--checkpoint",
+                options.duplicates || options.watch || options.merkle || options.archives,
+                "--duplicates, --watch, --merkle or --archives");
+        exclusive(options.checkpoint != null, "--checkpoint", options.binary || options.output.equals("-"),
+                "--format binary or standard output");
+        return options;
+    }
+
+    private static void exclusive(boolean first, String firstName, boolean second, String secondName)
+            throws RecursiveWalkException {
+        if (first && second) {
+            throw new RecursiveWalkException("Incorrect argument: " + firstName + " cannot be used with " + secondName);
+        }
+    }
+
+    private static String value(String[] argv, int i, String option) throws RecursiveWalkException {
+        if (i >= argv.length) {
+            throw new RecursiveWalkException("Incorrect argument: value expected after " + option);
+        }
+        return argv[i];
+    }
+
+    /**
+     * Parses byte count with optional {@code K}, {@code M} or {@code G} binary suffix.
+     */
+    private static long sizeValue(String[] argv, int i, String option) throws RecursiveWalkException {
+        String value = value(argv, i, option);
+        if (value.isEmpty()) {
+            throw new RecursiveWalkException("Incorrect argument: empty value of " + option);
+        }
+        int shift = 0;
+        switch (Character.toUpperCase(value.charAt(value.length() - 1))) {
+            case 'K':
+                shift = 10;
+                break;
+            case 'M':
+                shift = 20;
+                break;
+            case 'G':
+                shift = 30;
+                break;
+        }
+        try {
+            long result = Long.parseLong(shift == 0 ? value : value.substring(0, value.length() - 1));
+            if (result < 0 || result > (Long.MAX_VALUE >> shift)) {
+                throw new RecursiveWalkException("Incorrect argument: " + option + " " + value + " is out of range");
+            }
+            return result << shift;
+        } catch (NumberFormatException e) {
+            throw new RecursiveWalkException("Incorrect argument: " + option + " " + value, e);
+        }
+    }
+
+    /**
+     * Parses ISO-8601 instant, or date standing for its start in UTC, to milliseconds since the epoch.
+     */
+    private static long timeValue(String[] argv, int i, String option) throws RecursiveWalkException {
+        String value = value(argv, i, option);
+        try {
+            return Instant.parse(value).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            try {
+                return LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+            } catch (DateTimeParseException | ArithmeticException ignored) {
+                throw new RecursiveWalkException("Incorrect argument: " + option + " " + value, e);
+            }
+        } catch (ArithmeticException e) {
+            throw new RecursiveWalkException("Incorrect argument: " + option + " " + value + " is out of range");
+        }
+    }
+
+    private static int intValue(String[] argv, int i, String option) throws RecursiveWalkException {
+        String value = value(argv, i, option);
+        try {
+            int result = Integer.parseInt(value);
+            if (result < 0) {
+                throw new RecursiveWalkException("Incorrect argument: negative value of " + option);
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            throw new RecursiveWalkException("Incorrect argument: " + option + " " + value, e);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package ru.ifmo.rain.maslov.walk;
+
+import ru.ifmo.rain.maslov.walk.RecursiveWalk.RecursiveWalkException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs {@link RecursiveWalk} jobs sent by {@link WalkClient} in a resident JVM, so that frequent small
+ * walks pay for JVM startup and warm-up only once.
+ * <p>
+ * Usage: {@code WalkServer [--jobs N] [--memory ENTRIES] <socket>}. The server listens on a Unix-domain
+ * socket and runs at most {@code N} jobs at once, by default one per processor. Jobs share {@link WalkThreads}:
+ * {@code --threads} and {@code --archives} jobs run on a single pool of one thread per processor. Digests
+ * of visited files are kept in {@link HashCache.Memory memory} between jobs and validated like
+ * {@code --cache} entries, which are also consulted and saved as usual. At most {@code ENTRIES} least
+ * recently used digests are kept for each of the last {@link #ALGORITHMS} algorithms.
+ * <p>
+ * A request is the client working directory followed by the number of arguments and the arguments,
+ * a response is any number of {@link #OUTPUT} messages with the text the job prints to standard error,
+ * such as {@code --stats}, followed by a status and a message, all written by {@link DataOutputStream}.
+ * Jobs started in another working directory, reading standard input, writing standard output or watching
+ * files are {@link #DECLINED declined}, and the client runs them itself.
+ */
+public class WalkServer {
+    private static final String USAGE = "Usage: WalkServer [--jobs N] [--memory ENTRIES] <socket>";
+    static final int DEFAULT_MEMORY = 1 << 20;
+    static final int ALGORITHMS = 4;
+    private static final int MAX_ARGUMENTS = 1 << 12;
+    static final int DONE = 0;
+    static final int FAILED = 1;
+    static final int DECLINED = 2;
+    /**
+     * Status of a message with the number of bytes and the UTF-8 bytes of standard error text, before the response.
+     */
+    static final int OUTPUT = 3;
+
+    private final ExecutorService pool;
+    private final WalkThreads threads = WalkThreads.shared(Runtime.getRuntime().availableProcessors());
+    private final Path directory = Path.of("").toAbsolutePath();
+    private final int memory;
+    private final Map<String, HashCache.Memory> memories = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, HashCache.Memory> eldest) {
+                    return size() > ALGORITHMS;
+                }
+            });
+
+    /**
+     * @param memory number of digests kept per algorithm
+     */
+    WalkServer(int jobs, int memory) {
+        this.memory = memory;
+        this.pool = Executors.newFixedThreadPool(jobs, task -> {
+            Thread thread = new Thread(task, "walk-job");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Accepts jobs until the socket is closed.
+     *
+     * @throws IOException if another server listens on the socket, or the socket cannot be bound
+     */
+    void serve(Path socket) throws IOException {
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(socket);
+        boolean listening;
+        try {
+            SocketChannel.open(address).close();
+            listening = true;
+        } catch (IOException e) {
+            listening = false;
+        }
+        if (listening) {
+            throw new IOException("Another server listens on " + socket);
+        }
+        // a stale socket file is left by a server that was killed
+        Files.deleteIfExists(socket);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(address);
+            socket.toFile().deleteOnExit();
+            while (true) {
+                SocketChannel client = server.accept();
+                pool.execute(() -> handle(client));
+            }
+        } finally {
+            pool.shutdownNow();
+            threads.shutdown();
+        }
+    }
+
+    private void handle(SocketChannel client) {
+        try (client) {
+            DataInputStream in = new DataInputStream(Channels.newInputStream(client));
+            Replies out = new Replies(new DataOutputStream(Channels.newOutputStream(client)));
+            String directory = in.readUTF();
+            int count = in.readInt();
+            if (count < 0 || count > MAX_ARGUMENTS) {
+                out.reply(FAILED, "Invalid number of arguments: " + count);
+                return;
+            }
+            String[] arguments = new String[count];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = in.readUTF();
+            }
+            int status = DONE;
+            String message = "";
+            try {
+                WalkOptions options = WalkOptions.parse(arguments);
+                String reason = decline(directory, options);
+                if (reason != null) {
+                    status = DECLINED;
+                    message = reason;
+                } else {
+                    RecursiveWalk.execute(options, memories.computeIfAbsent(
+                            Digester.algorithm(options.hasher, options.samples, options.treeChunk),
+                            algorithm -> new HashCache.Memory(memory)), threads,
+                            new PrintStream(out, true, StandardCharsets.UTF_8));
+                }
+            } catch (RecursiveWalkException e) {
+                status = FAILED;
+                message = e.getMessage();
+            } catch (RuntimeException e) {
+                status = FAILED;
+                message = "Walk failed: " + e;
+            }
+            out.reply(status, message);
+        } catch (IOException e) {
+            // the client has gone, and there is no one to report to
+        }
+    }
+
+    /**
+     * Messages to the client: standard error text of the job, sent as {@link #OUTPUT} messages on flush,
+     * and the response, after which the text is dropped.
+     */
+    private static class Replies extends OutputStream {
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream text = new ByteArrayOutputStream();
+        private boolean replied;
+
+        Replies(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            text.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            text.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (!replied && text.size() > 0) {
+                out.writeInt(OUTPUT);
+                out.writeInt(text.size());
+                text.writeTo(out);
+                out.flush();
+            }
+            text.reset();
+        }
+
+        synchronized void reply(int status, String message) throws IOException {
+            flush();
+            replied = true;
+            out.writeInt(status);
+            out.writeUTF(message);
+            out.flush();
+        }
+    }
+
+    /**
+     * Returns the reason why the job should run in the client, or {@code null} if it runs here.
+     */
+    private String decline(String directory, WalkOptions options) {
+        try {
+            if (!Path.of(directory).equals(this.directory)) {
+                return "Server runs in " + this.directory;
+            }
+        } catch (InvalidPathException e) {
+            return "Invalid working directory: " + directory;
+        }
+        if (options.input.equals("-") || options.output.equals("-")) {
+            return "Standard input and output are not available to the server";
+        }
+        if (options.watch) {
+            return "--watch jobs never finish";
+        }
+        return null;
+    }
+
+    public static void main(String[] argv) {
+        try {
+            if (argv == null) {
+                throw new RecursiveWalkException(USAGE);
+            }
+            int jobs = Runtime.getRuntime().availableProcessors();
+            int memory = DEFAULT_MEMORY;
+            Path socket = null;
+            for (int i = 0; i < argv.length; i++) {
+                if (argv[i] == null) {
+                    throw new RecursiveWalkException("Incorrect argument: argument " + (i + 1) + " is null");
+                }
+                if (argv[i].equals("--jobs") && i + 1 < argv.length) {
+                    try {
+                        jobs = Integer.parseInt(argv[++i]);
+                    } catch (NumberFormatException e) {
+                        throw new RecursiveWalkException("Incorrect argument: --jobs " + argv[i], e);
+                    }
+                    if (jobs <= 0) {
+                        throw new RecursiveWalkException("Incorrect argument: --jobs must be positive");
+                    }
+                } else if (argv[i].equals("--memory") && i + 1 < argv.length) {
+                    try {
+                        memory = Integer.parseInt(argv[++i]);
+                    } catch (NumberFormatException e) {
+                        throw new RecursiveWalkException("Incorrect argument: --memory " + argv[i], e);
+                    }
+                    if (memory < 0) {
+                        throw new RecursiveWalkException("Incorrect argument: --memory must not be negative");
+                    }
+                } else if (argv[i].startsWith("--") || socket != null) {
+                    throw new RecursiveWalkException("Incorrect argument: " + argv[i] + "\n" + USAGE);
+                } else {
+                    try {
+                        socket = Path.of(argv[i]);
+                    } catch (InvalidPathException e) {
+                        throw new RecursiveWalkException("Invalid socket path: " + argv[i], e);
+                    }
+                }
+            }
+            if (socket == null) {
+                throw new RecursiveWalkException(USAGE);
+            }
+            try {
+                new WalkServer(jobs, memory).serve(socket);
+            } catch (IOException e) {
+                throw new RecursiveWalkException("Cannot serve on " + socket + ": ", e);
+            }
+        } catch (RecursiveWalkException e) {
+            e.print();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package ru.ifmo.rain.maslov.walk;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Threads used by {@link RecursiveWalk} jobs: a pool of parallel walks and archive expansion, and threads
+ * of blocking loops such as input decoding and output writing.
+ * <p>
+ * A single job starts its own threads and shuts them down when it finishes. Jobs of a resident JVM,
+ * such as {@link WalkServer}, share one pool and reuse idle loop threads instead.
+ */
+class WalkThreads {
+    /**
+     * Threads of a single job.
+     */
+    static final WalkThreads DEDICATED = new WalkThreads(null, null);
+
+    private final ForkJoinPool pool;
+    private final ExecutorService loops;
+
+    private WalkThreads(ForkJoinPool pool, ExecutorService loops) {
+        this.pool = pool;
+        this.loops = loops;
+    }
+
+    /**
+     * Creates threads shared by jobs, walking on at most {@code parallelism} pool threads at once.
+     */
+    static WalkThreads shared(int parallelism) {
+        return new WalkThreads(new ForkJoinPool(parallelism), Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "walk-loop");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    /**
+     * Returns the shared pool, or {@code null} if every job creates its own.
+     */
+    ForkJoinPool pool() {
+        return pool;
+    }
+
+    /**
+     * Starts the loop on a daemon thread. Cancelling the returned future interrupts the loop.
+     */
+    Future<?> start(Runnable loop, String name) {
+        FutureTask<?> task = new FutureTask<>(loop, null);
+        if (loops != null) {
+            loops.execute(task);
+        } else {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return task;
+    }
+
+    /**
+     * Shuts down shared threads.
+     */
+    void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+            loops.shutdownNow();
+        }
+    }
+}